@@ -0,0 +1,99 @@
+package fi.aalto.amadei.benchmarks;
+
+import fi.aalto.amadei.beans.UpdateRequest;
+import fi.aalto.amadei.computing.ComputeController;
+import fi.aalto.amadei.computing.PartitioningMode;
+import fi.aalto.amadei.computing.RequestDispatcher;
+import fi.aalto.amadei.model.RetentionPolicy;
+import fi.aalto.amadei.model.StorageType;
+import fi.aalto.amadei.utils.Constants;
+import fi.aalto.amadei.utils.ThreadingMode;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of already parsed requests going from several producer threads, through the ComputeController, to the
+ * workers. Scores are requests per second: they should grow with the number of producers until workers are saturated.
+ * Producers and workers run on platform or virtual threads, depending on threadingMode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class DispatchBenchmark {
+
+    private static final int REQUESTS = 1 << 20;
+
+    @Param({"1", "2", "4", "8"})
+    private int nProducers;
+
+    @Param({"1", "4"})
+    private int nComputingThreads;
+
+    @Param({"1", "256"})
+    private int batchSize;
+
+    @Param({"1000"})
+    private int nUsers;
+
+    @Param({"HASH", "CONSISTENT", "HOT"})
+    private PartitioningMode partitioningMode;
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    private ThreadingMode threadingMode;
+
+    private List<List<UpdateRequest>> slices;
+    private ExecutorService producers;
+
+    @Setup
+    public void setup() {
+        List<UpdateRequest> requests = new SyntheticInput(nUsers, 1, 42).requests(REQUESTS);
+
+        slices = new ArrayList<>(nProducers);
+        for(int i = 0; i < nProducers; i++)
+            slices.add(requests.subList(i * REQUESTS / nProducers, (i + 1) * REQUESTS / nProducers));
+
+        producers = threadingMode.newExecutor(nProducers, "producer");
+    }
+
+    @TearDown
+    public void tearDown() {
+        producers.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(REQUESTS)
+    public void dispatch() throws Exception {
+        ComputeController computeController = ComputeController.start(nProducers, nComputingThreads, batchSize,
+                Constants.DEFAULT_QUEUE_MEMORY, threadingMode, StorageType.HASHMAP, RetentionPolicy.KEEP_ALL, partitioningMode, null, null,
+                Channels.newChannel(OutputStream.nullOutputStream()), false);
+
+        List<Future<?>> futures = new ArrayList<>(nProducers);
+
+        for(List<UpdateRequest> slice : slices) {
+            futures.add(producers.submit(() -> {
+                RequestDispatcher dispatcher = computeController.acquireDispatcher();
+
+                for(UpdateRequest request : slice)
+                    dispatcher.dispatch(request);
+
+                computeController.releaseDispatcher(dispatcher);
+            }));
+        }
+
+        for(Future<?> future : futures)
+            future.get();
+
+        computeController.parsingDone();
+        computeController.waitForTermination();
+    }
+}
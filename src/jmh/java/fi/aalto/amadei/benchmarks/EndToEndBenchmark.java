@@ -0,0 +1,91 @@
+package fi.aalto.amadei.benchmarks;
+
+import fi.aalto.amadei.computing.ComputeController;
+import fi.aalto.amadei.computing.StalenessFilter;
+import fi.aalto.amadei.io.ParallelFileReader;
+import fi.aalto.amadei.io.ParsingMode;
+import fi.aalto.amadei.model.RetentionPolicy;
+import fi.aalto.amadei.model.StorageType;
+import fi.aalto.amadei.utils.Constants;
+import fi.aalto.amadei.utils.ThreadingMode;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full run of the application on a synthetic input file, from reading the file to printing the result.
+ * Useful to tune -p and -c for a given machine, e.g.:
+ * java -jar supercell-2-benchmarks.jar EndToEnd -p nParsingThreads=1,2,4,8 -p nComputingThreads=1,2,4
+ * Platform and virtual threads can be compared with many parsing threads, e.g.:
+ * java -jar supercell-2-benchmarks.jar EndToEnd -p nParsingThreads=4,64 -p threadingMode=PLATFORM,VIRTUAL
+ * Read-ahead can be tuned the same way, e.g. -p prefetchDepth=0,1,4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class EndToEndBenchmark {
+
+    @Param({"64"})
+    private int fileSizeMb;
+
+    @Param({"1000", "1000000"})
+    private int nUsers;
+
+    @Param({"1", "4"})
+    private int keysPerUpdate;
+
+    @Param({"4"})
+    private int nParsingThreads;
+
+    @Param({"1"})
+    private int nComputingThreads;
+
+    @Param({"FAST"})
+    private ParsingMode parsingMode;
+
+    @Param({"HASHMAP"})
+    private StorageType storageType;
+
+    @Param({"false", "true"})
+    private boolean prefilter;
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    private ThreadingMode threadingMode;
+
+    @Param({"0", "1"})
+    private int prefetchDepth;
+
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = new SyntheticInput(nUsers, keysPerUpdate, 42).writeFile(fileSizeMb * 1024L * 1024L);
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public void run() throws IOException {
+        ComputeController computeController = ComputeController.start(nParsingThreads, nComputingThreads,
+                Constants.DEFAULT_BATCH_SIZE, Constants.DEFAULT_QUEUE_MEMORY, threadingMode, storageType,
+                RetentionPolicy.KEEP_ALL, Constants.DEFAULT_PARTITIONING_MODE,
+                prefilter ? new StalenessFilter(Constants.PREFILTER_CAPACITY) : null, null,
+                Channels.newChannel(OutputStream.nullOutputStream()), false);
+
+        ParallelFileReader parallelFileReader = new ParallelFileReader(file, 0, -1, nParsingThreads, parsingMode,
+                Constants.DEFAULT_BUFFER_SIZE, prefetchDepth, computeController);
+
+        parallelFileReader.readAll();
+        computeController.waitForTermination();
+    }
+}
@@ -0,0 +1,55 @@
+package fi.aalto.amadei.benchmarks;
+
+import fi.aalto.amadei.beans.UpdateRequest;
+import fi.aalto.amadei.model.StateStorage;
+import fi.aalto.amadei.model.StorageType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merge of the partial storages of the workers into a single one
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class MergeBenchmark {
+
+    @Param({"HASHMAP", "COMPACT", "OFFHEAP", "VERSIONED"})
+    private StorageType storageType;
+
+    @Param({"100000"})
+    private int nUsers;
+
+    @Param({"4"})
+    private int nPartitions;
+
+    private StateStorage[] partitions;
+
+    @Setup(Level.Invocation)
+    public void setup() {
+        List<UpdateRequest> requests = new SyntheticInput(nUsers, 4, 42).requests(nUsers * 2);
+
+        partitions = new StateStorage[nPartitions];
+        for(int i = 0; i < nPartitions; i++)
+            partitions[i] = storageType.create();
+
+        for(UpdateRequest r : requests)
+            partitions[Math.floorMod(r.getUser().hashCode(), nPartitions)]
+                    .applyUpdate(r.getUser(), r.getTimestamp(), r.getValues());
+    }
+
+    @Benchmark
+    public StateStorage mergeWith() {
+        StateStorage result = storageType.create();
+
+        for(StateStorage partition : partitions)
+            result.mergeWith(partition);
+
+        return result;
+    }
+}
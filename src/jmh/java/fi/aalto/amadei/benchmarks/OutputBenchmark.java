@@ -0,0 +1,56 @@
+package fi.aalto.amadei.benchmarks;
+
+import fi.aalto.amadei.beans.UpdateRequest;
+import fi.aalto.amadei.io.JsonStateWriter;
+import fi.aalto.amadei.model.StateStorage;
+import fi.aalto.amadei.model.StorageType;
+import fi.aalto.amadei.utils.Instances;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the final state at the end of a run: GSON on the intermediate maps, as it used to be done, and
+ * streaming through the JsonStateWriter
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class OutputBenchmark {
+
+    @Param({"HASHMAP", "COMPACT", "OFFHEAP", "VERSIONED"})
+    private StorageType storageType;
+
+    @Param({"100000"})
+    private int nUsers;
+
+    private StateStorage stateStorage;
+
+    @Setup
+    public void setup() {
+        SyntheticInput input = new SyntheticInput(nUsers, 4, 42);
+
+        stateStorage = storageType.create();
+
+        for(int i = 0; i < nUsers * 2; i++) {
+            UpdateRequest r = input.nextRequest();
+            stateStorage.applyUpdate(r.getUser(), r.getTimestamp(), r.getValues());
+        }
+    }
+
+    @Benchmark
+    public String gson() {
+        return Instances.gson().toJson(stateStorage.getStateOfAllUsers());
+    }
+
+    @Benchmark
+    public void streaming() throws IOException {
+        new JsonStateWriter(Channels.newChannel(OutputStream.nullOutputStream())).write(stateStorage);
+    }
+}
@@ -0,0 +1,64 @@
+package fi.aalto.amadei.benchmarks;
+
+import com.google.gson.Gson;
+import fi.aalto.amadei.beans.UpdateRequest;
+import fi.aalto.amadei.io.FastRequestParser;
+import fi.aalto.amadei.io.ParsingMode;
+import fi.aalto.amadei.utils.Instances;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Line parsing throughput of a ChunkReader, for both parsing modes. Scores are lines per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParsingBenchmark {
+
+    private static final int LINES = 10_000;
+
+    @Param({"FAST", "GSON"})
+    private ParsingMode mode;
+
+    @Param({"4"})
+    private int keysPerUpdate;
+
+    private final FastRequestParser fastParser = new FastRequestParser();
+    private final Gson gson = Instances.gson();
+
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        data = new SyntheticInput(100_000, keysPerUpdate, 42).lines(LINES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseLines(Blackhole blackhole) {
+        int lineStart = 0;
+
+        for(int i = 0; i < data.length; i++) {
+            if(data[i] == '\n') {
+                UpdateRequest request = null;
+
+                if(mode == ParsingMode.FAST)
+                    request = fastParser.parse(data, lineStart, i);
+
+                if(request == null)
+                    request = gson.fromJson(new String(data, lineStart, i - lineStart, StandardCharsets.UTF_8),
+                            UpdateRequest.class);
+
+                blackhole.consume(request);
+                lineStart = i + 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package fi.aalto.amadei.benchmarks;
+
+import fi.aalto.amadei.io.ByteScanner;
+import fi.aalto.amadei.io.ScanningMode;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Byte scanning throughput on synthetic input lines: finding every newline, and every string of every line like the
+ * FastRequestParser does. A byte-by-byte loop is measured as a baseline. Scores are lines per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ScanningBenchmark {
+
+    private static final int LINES = 10_000;
+
+    @Param({"SWAR", "VECTOR"})
+    private ScanningMode mode;
+
+    @Param({"1", "4"})
+    private int keysPerUpdate;
+
+    private ByteScanner scanner;
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        scanner = mode.create();
+        data = new SyntheticInput(100_000, keysPerUpdate, 42).lines(LINES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int newlines() {
+        int lines = 0;
+
+        for(int i = scanner.indexOf(data, 0, data.length, (byte) '\n'); i >= 0;
+            i = scanner.indexOf(data, i + 1, data.length, (byte) '\n'))
+            lines++;
+
+        return lines;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int newlinesByteByByte() {
+        int lines = 0;
+
+        for(byte b : data) {
+            if(b == '\n')
+                lines++;
+        }
+
+        return lines;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void strings(Blackhole blackhole) {
+        int lineStart = 0;
+
+        for(int lineEnd = scanner.indexOf(data, 0, data.length, (byte) '\n'); lineEnd >= 0;
+            lineEnd = scanner.indexOf(data, lineStart, data.length, (byte) '\n')) {
+            // Every quote, like the opening and closing quotes of the strings of a line
+            for(int i = scanner.indexOfEither(data, lineStart, lineEnd, (byte) '"', (byte) '\\'); i >= 0;
+                i = scanner.indexOfEither(data, i + 1, lineEnd, (byte) '"', (byte) '\\'))
+                blackhole.consume(i);
+
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void stringsByteByByte(Blackhole blackhole) {
+        for(int i = 0; i < data.length; i++) {
+            if(data[i] == '"' || data[i] == '\\')
+                blackhole.consume(i);
+        }
+    }
+}
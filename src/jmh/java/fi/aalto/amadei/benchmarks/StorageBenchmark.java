@@ -0,0 +1,63 @@
+package fi.aalto.amadei.benchmarks;
+
+import fi.aalto.amadei.beans.UpdateRequest;
+import fi.aalto.amadei.model.StateStorage;
+import fi.aalto.amadei.model.StorageType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Update throughput of every State Storage implementation, on a storage already holding every user
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class StorageBenchmark {
+
+    private static final int REQUESTS = 1 << 16;
+
+    @Param({"HASHMAP", "COMPACT", "OFFHEAP"})
+    private StorageType storageType;
+
+    @Param({"10000", "1000000"})
+    private int nUsers;
+
+    @Param({"4"})
+    private int keysPerUpdate;
+
+    private StateStorage stateStorage;
+    private UpdateRequest[] requests;
+    private int next;
+
+    @Setup
+    public void setup() {
+        SyntheticInput input = new SyntheticInput(nUsers, keysPerUpdate, 42);
+
+        stateStorage = storageType.create();
+
+        // Make sure every user already exists
+        for(int i = 0; i < nUsers; i++)
+            stateStorage.applyUpdate("user" + i, 0, Map.of("key0", "value"));
+
+        requests = input.requests(REQUESTS).toArray(new UpdateRequest[0]);
+    }
+
+    @Benchmark
+    public Map<String, String> updateState() {
+        UpdateRequest request = requests[next++ & (REQUESTS - 1)];
+
+        return stateStorage.updateState(request.getUser(), request.getTimestamp(), request.getValues());
+    }
+
+    @Benchmark
+    public void applyUpdate() {
+        UpdateRequest request = requests[next++ & (REQUESTS - 1)];
+
+        stateStorage.applyUpdate(request.getUser(), request.getTimestamp(), request.getValues());
+    }
+}
@@ -0,0 +1,122 @@
+package fi.aalto.amadei.benchmarks;
+
+import fi.aalto.amadei.beans.UpdateRequest;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates synthetic inputs with the same shape as requests.jsonl
+ */
+public class SyntheticInput {
+
+    private final Random random;
+    private final int nUsers;
+    private final int keysPerUpdate;
+    private final String[] keys;
+
+    /**
+     * @param nUsers the number of distinct users
+     * @param keysPerUpdate the number of keys in every update
+     * @param seed the seed of the random generator, so that runs can be compared
+     */
+    public SyntheticInput(int nUsers, int keysPerUpdate, long seed) {
+        this.random = new Random(seed);
+        this.nUsers = nUsers;
+        this.keysPerUpdate = keysPerUpdate;
+
+        // Updates pick their keys from a vocabulary a few times bigger than an update
+        this.keys = new String[Math.max(16, keysPerUpdate * 4)];
+        for(int i = 0; i < keys.length; i++)
+            keys[i] = "key" + i;
+    }
+
+    /**
+     * @return the next random request
+     */
+    public UpdateRequest nextRequest() {
+        Map<String, String> values = new HashMap<>();
+
+        while(values.size() < keysPerUpdate)
+            values.put(keys[random.nextInt(keys.length)], "value" + random.nextInt(100));
+
+        return new UpdateRequest("user" + random.nextInt(nUsers), random.nextInt(1_000_000_000), values);
+    }
+
+    /**
+     * @return the next random request, as a line of the input file (without newline)
+     */
+    public String nextLine() {
+        UpdateRequest request = nextRequest();
+
+        StringBuilder builder = new StringBuilder(64 + keysPerUpdate * 24);
+        builder.append("{\"user\": \"").append(request.getUser())
+                .append("\", \"timestamp\": ").append(request.getTimestamp())
+                .append(", \"values\": {");
+
+        boolean first = true;
+        for(Map.Entry<String, String> entry : request.getValues().entrySet()) {
+            if(!first)
+                builder.append(", ");
+
+            builder.append('"').append(entry.getKey()).append("\": \"").append(entry.getValue()).append('"');
+            first = false;
+        }
+
+        return builder.append("}}").toString();
+    }
+
+    public List<UpdateRequest> requests(int count) {
+        List<UpdateRequest> requests = new ArrayList<>(count);
+
+        for(int i = 0; i < count; i++)
+            requests.add(nextRequest());
+
+        return requests;
+    }
+
+    /**
+     * Generates the content of an input file with a given number of lines
+     * @param nLines the number of lines
+     * @return the UTF-8 content, every line terminated by a newline
+     */
+    public byte[] lines(int nLines) {
+        StringBuilder builder = new StringBuilder();
+
+        for(int i = 0; i < nLines; i++)
+            builder.append(nextLine()).append('\n');
+
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a temporary input file of roughly the given size, deleted on exit
+     * @param sizeBytes the size of the file
+     * @return the file
+     */
+    public File writeFile(long sizeBytes) throws IOException {
+        File file = File.createTempFile("requests", ".jsonl");
+        file.deleteOnExit();
+
+        long written = 0;
+        try(OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            while(written < sizeBytes) {
+                byte[] line = (nextLine() + "\n").getBytes(StandardCharsets.UTF_8);
+
+                out.write(line);
+                written += line.length;
+            }
+        }
+
+        return file;
+    }
+}
@@ -1,21 +1,49 @@
 package fi.aalto.amadei;
 
 import fi.aalto.amadei.computing.ComputeController;
+import fi.aalto.amadei.computing.PartitioningMode;
+import fi.aalto.amadei.computing.ShardFilter;
+import fi.aalto.amadei.computing.StalenessFilter;
+import fi.aalto.amadei.io.FileTailer;
+import fi.aalto.amadei.io.InputPosition;
 import fi.aalto.amadei.io.ParallelFileReader;
+import fi.aalto.amadei.io.ParsingMode;
+import fi.aalto.amadei.io.SnapshotManifest;
+import fi.aalto.amadei.model.RetentionPolicy;
+import fi.aalto.amadei.model.StorageType;
+import fi.aalto.amadei.query.QueryServer;
+import fi.aalto.amadei.sharding.ShardCoordinator;
+import fi.aalto.amadei.tuning.Autotuner;
+import fi.aalto.amadei.tuning.InputSample;
+import fi.aalto.amadei.tuning.ParsingRebalancer;
 import fi.aalto.amadei.utils.Constants;
+import fi.aalto.amadei.utils.ThreadingMode;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.stream.Stream;
 
-@Command(name = "run", version = "1.0", description = "Run the algorithm on an input file", mixinStandardHelpOptions = true)
+@Command(name = "run", version = "1.0", description = "Run the algorithm on input files", mixinStandardHelpOptions = true)
 public class App implements Callable<Integer> {
 
-    @Option(names = {"-i", "--input"}, description = "The input file to process", required = true)
-    private File file;
+    @Option(names = {"-i", "--input"}, arity = "1..*", description = "The input files to process: files or glob patterns on file names (e.g. 'logs/requests-*.gz'), plain or compressed with gzip or zstd", required = true)
+    private List<String> inputs;
+
+    private List<File> files;
+
+    @Option(names = {"-o", "--output"}, description = "The file to write the result to (default: standard output)")
+    private File outputFile;
 
     @Option(names = {"-p", "--parsing"}, description = "The number of threads dedicated to parsing the input file")
     private int nParsingThreads = Constants.DEFAULT_PARSING_THREADS;
@@ -23,14 +51,100 @@ public class App implements Callable<Integer> {
     @Option(names = {"-c", "--computing"}, description = "The number of threads dedicated to computing the result")
     private int nComputingThreads = Constants.DEFAULT_COMPUTING_THREADS;
 
+    @Option(names = {"--parser"}, description = "The parser used for the input lines: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})")
+    private ParsingMode parsingMode = Constants.DEFAULT_PARSING_MODE;
+
+    @Option(names = {"--buffer-size"}, description = "The size in bytes of the read window of every parsing thread")
+    private int bufferSize = Constants.DEFAULT_BUFFER_SIZE;
+
+    @Option(names = {"--prefetch"}, description = "The number of windows every parsing thread reads ahead while parsing the current one, 0 to only read a window once needed (default: ${DEFAULT-VALUE})")
+    private int prefetchDepth = Constants.DEFAULT_PREFETCH_DEPTH;
+
+    @Option(names = {"--batch-size"}, description = "The number of requests sent at once to a computing thread")
+    private int batchSize = Constants.DEFAULT_BATCH_SIZE;
+
+    @Option(names = {"--queue-memory"}, description = "The memory in bytes parsed requests waiting for the computing threads may use. Parsing threads wait while it is full")
+    private long queueMemory = Constants.DEFAULT_QUEUE_MEMORY;
+
+    @Option(names = {"--storage"}, description = "The storage engine for users' state: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})")
+    private StorageType storageType = Constants.DEFAULT_STORAGE_TYPE;
+
+    @Option(names = {"--retain-versions"}, description = "With --storage VERSIONED, the maximum number of versions kept for every key (default: no limit)")
+    private int retainVersions;
+
+    @Option(names = {"--retain-age"}, description = "With --storage VERSIONED, forget the versions of a key that were already replaced this many timestamp units before its most recent version (default: no limit)")
+    private long retainAge;
+
+    @Option(names = {"--partitioner"}, description = "How requests are assigned to computing threads: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})")
+    private PartitioningMode partitioningMode = Constants.DEFAULT_PARTITIONING_MODE;
+
+    @Option(names = {"--worker-load"}, description = "Print the number of requests processed by every computing thread on the standard error")
+    private boolean printWorkerLoad;
+
+    @Option(names = {"--prefilter"}, description = "Drop updates already known to be stale before sending them to the computing threads, and print how many were dropped on the standard error. Not available with --storage VERSIONED, which keeps stale updates as history")
+    private boolean prefilter;
+
+    @Option(names = {"--follow"}, description = "Keep running after reading the input file (or directory of rolled files), applying lines as they are appended and writing the changes. Type 'snapshot' on the standard input to write the whole state, 'save' to save a binary snapshot, 'stop' to terminate")
+    private boolean follow;
+
+    @Option(names = {"--follow-interval"}, description = "The number of milliseconds between two checks for new lines in --follow mode")
+    private long followIntervalMillis = Constants.DEFAULT_FOLLOW_INTERVAL_MILLIS;
+
+    @Option(names = {"--save-snapshot"}, description = "The directory to save a binary snapshot of the state into, once the input is read (in --follow mode: when typing 'save' and when stopping)")
+    private File saveSnapshotDirectory;
+
+    @Option(names = {"--load-snapshot"}, description = "The directory of a binary snapshot to start from. Only the part of the input read after the snapshot was saved is processed")
+    private File loadSnapshotDirectory;
+
+    @Option(names = {"--query"}, description = "Once the input is read, answer queries typed on the standard input instead of writing the whole result: 'get [user] [key ...]', 'prefix [prefix] [key ...]', 'range [from] [to] [key ...]'. With --storage VERSIONED, 'asof [timestamp] [query]' and 'diff [from] [to] [query]' look at the history. 'stop' terminates")
+    private boolean query;
+
+    @Option(names = {"--query-port"}, description = "Also answer queries from clients connecting to this port of the loopback interface. Implies --query, unless in --follow mode")
+    private int queryPort = -1;
+
+    @Option(names = {"--shards"}, description = "Run the program as this number of processes, each one keeping the state of a range of user hashes in its own heap, and merge their results")
+    private int nShards = 1;
+
+    @Option(names = {"--shard-heap"}, description = "The maximum heap size of every process in --shards mode, e.g. 4g")
+    private String shardHeap;
+
+    @Option(names = {"--shard-index"}, description = "Only keep the users of this shard, from 0 to --shard-count - 1. Used by the processes of --shards mode")
+    private int shardIndex;
+
+    @Option(names = {"--shard-count"}, description = "The number of shards the users are split into. Used by the processes of --shards mode")
+    private int shardCount = 1;
+
+    @Option(names = {"--stats"}, description = "Print the counters of every stage of the pipeline on the standard error once done. They are also exposed through JMX while running")
+    private boolean printStatistics;
+
+    @Option(names = {"--virtual-threads"}, description = "Run parsing and computing on virtual threads. -p is then the number of chunks read at the same time and can be much higher than the number of cores, e.g. for slow or network storage")
+    private boolean virtualThreads;
+
+    @Option(names = {"--auto"}, description = "Choose the number of parsing and computing threads from a sample of the input and the available cores, then keep adjusting the parsing threads during the run. Overrides -p and -c")
+    private boolean auto;
+
     @Override
     public Integer call() {
-        // Check if the file exists (and it's not a directory)
-        if(!file.exists() || file.isDirectory()) {
+        try {
+            files = expandInputs(inputs);
+        } catch (IOException e) {
             System.out.println("Invalid file.");
             return 1;
         }
 
+        // Check if the files exist (and they are not directories, unless following a directory of rolled files)
+        for(File file : files) {
+            if(!file.exists() || (file.isDirectory() && !follow)) {
+                System.out.println("Invalid file: " + file);
+                return 1;
+            }
+        }
+
+        if(files.isEmpty() || (follow && files.size() > 1)) {
+            System.out.println(follow ? "Exactly one file or directory can be followed." : "No input file.");
+            return 1;
+        }
+
         // Checks if dedicated threads are not negative or zero
         if(nParsingThreads <= 0)
             nParsingThreads = Constants.DEFAULT_PARSING_THREADS;
@@ -38,24 +152,382 @@ public class App implements Callable<Integer> {
         if(nComputingThreads <= 0)
             nComputingThreads = Constants.DEFAULT_COMPUTING_THREADS;
 
+        if(bufferSize <= 0)
+            bufferSize = Constants.DEFAULT_BUFFER_SIZE;
+
+        if(prefetchDepth < 0)
+            prefetchDepth = Constants.DEFAULT_PREFETCH_DEPTH;
+
+        if(batchSize <= 0)
+            batchSize = Constants.DEFAULT_BATCH_SIZE;
+
+        if(queueMemory <= 0)
+            queueMemory = Constants.DEFAULT_QUEUE_MEMORY;
+
+        if(followIntervalMillis <= 0)
+            followIntervalMillis = Constants.DEFAULT_FOLLOW_INTERVAL_MILLIS;
+
+        if(queryPort >= 0 && !follow)
+            query = true;
+
+        if(retainVersions < 0 || retainAge < 0) {
+            System.out.println("Invalid retention: " + retainVersions + " versions, age " + retainAge);
+            return 1;
+        }
+
+        if(shardCount <= 0 || shardIndex < 0 || shardIndex >= shardCount) {
+            System.out.println("Invalid shard: " + shardIndex + " of " + shardCount);
+            return 1;
+        }
+
+        if(nShards > 1 && (follow || query || shardCount > 1 || saveSnapshotDirectory != null ||
+                loadSnapshotDirectory != null)) {
+            System.out.println("--shards cannot be used with --follow, --query, --shard-count or snapshots.");
+            return 1;
+        }
+
+        // Stale updates are part of the history
+        if(prefilter && storageType.keepsHistory()) {
+            System.out.println("--prefilter cannot be used with --storage " + storageType + ".");
+            return 1;
+        }
+
+        if(query && follow) {
+            System.out.println("Queries can only be typed on the standard input without --follow, use --query-port.");
+            return 1;
+        }
+
+        // Sample the input to choose the number of threads
+        List<File> inputFiles = follow ? FileTailer.inputFiles(files.get(0)) : files;
+        if(auto && nShards <= 1 && !inputFiles.isEmpty()) {
+            try {
+                InputSample sample = InputSample.of(inputFiles, Constants.AUTO_SAMPLE_SIZE, parsingMode,
+                        storageType);
+                Autotuner autotuner = new Autotuner(sample, Runtime.getRuntime().availableProcessors());
+
+                nParsingThreads = autotuner.getParsingThreads();
+                nComputingThreads = autotuner.getComputingThreads();
+
+                System.err.printf("Auto: %d parsing threads, %d computing threads (%d lines sampled, %.0f bytes per " +
+                        "line, %d users)%n", nParsingThreads, nComputingThreads, sample.getLines(),
+                        sample.getAverageLineLength(), sample.getDistinctUsers());
+            } catch (IOException e) {
+                System.out.println("Unable to open file.");
+                return 1;
+            }
+        }
+
+        // Open the output file, or write to the standard output
+        WritableByteChannel output;
+        try {
+            output = outputFile != null
+                    ? FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING)
+                    : follow ? Channels.newChannel(new FileOutputStream(FileDescriptor.out))
+                    : Channels.newChannel(System.out);
+        } catch (IOException e) {
+            System.out.println("Unable to open output file.");
+            return 1;
+        }
+
+        if(nShards > 1) {
+            try {
+                return runShards(output);
+            } finally {
+                closeOutput(output);
+            }
+        }
+
         // Check if the file can be opened
         try {
-            ComputeController computeController = new ComputeController(nParsingThreads, nComputingThreads);
+            StalenessFilter stalenessFilter = prefilter ? new StalenessFilter(Constants.PREFILTER_CAPACITY) : null;
+
+            ComputeController computeController = ComputeController.start(nParsingThreads, nComputingThreads, batchSize,
+                    queueMemory, virtualThreads ? ThreadingMode.VIRTUAL : ThreadingMode.PLATFORM, storageType,
+                    new RetentionPolicy(retainVersions, retainAge), partitioningMode, stalenessFilter,
+                    shardCount > 1 ? new ShardFilter(shardIndex, shardCount) : null, query ? null : output, follow);
+            computeController.getMetrics().register();
+
+            // Start from a binary snapshot
+            SnapshotManifest manifest = null;
+            if(loadSnapshotDirectory != null) {
+                try {
+                    manifest = SnapshotManifest.read(loadSnapshotDirectory);
+                    computeController.loadSnapshot(loadSnapshotDirectory, manifest);
+                } catch (IOException e) {
+                    System.out.println("Unable to load snapshot: " + e.getMessage());
+                    return 1;
+                }
+            }
+
+            Map<String, InputPosition> inputPositions = manifest != null ? manifest.getInputPositions() : Map.of();
+
+            if(follow) {
+                follow(computeController, inputPositions);
+                printPrefilterStatistics(stalenessFilter);
+                printStatistics(computeController);
+                return 0;
+            }
+
+            // Read the part of the files not in the snapshot
+            ParallelFileReader parallelFileReader = new ParallelFileReader(files, inputPositions, nParsingThreads,
+                    parsingMode, bufferSize, prefetchDepth, computeController);
+
+            ParsingRebalancer rebalancer = null;
+            // The number of virtual threads reading at the same time cannot be changed while reading
+            if(auto && !virtualThreads) {
+                int nCores = Runtime.getRuntime().availableProcessors();
+
+                rebalancer = new ParsingRebalancer(parallelFileReader, computeController,
+                        Math.max(nParsingThreads, nCores - nComputingThreads));
+                rebalancer.start();
+            }
 
-            ParallelFileReader parallelFileReader = new ParallelFileReader(file, nParsingThreads, computeController);
+            try {
+                parallelFileReader.read();
+            } catch (IOException e) {
+                // Never write a result missing part of the input
+                System.out.println("Unable to read file: " + e.getMessage());
+                return 1;
+            } finally {
+                if(rebalancer != null)
+                    rebalancer.stop();
+            }
+
+            if(saveSnapshotDirectory != null)
+                saveSnapshot(computeController, parallelFileReader.getInputPositions());
+
+            if(query && !serveQueries(computeController, output)) {
+                computeController.parsingDone();
+                return 1;
+            }
+
+            computeController.parsingDone();
 
-            parallelFileReader.readAll();
             computeController.waitForTermination();
+
+            // The error was printed when writing
+            if(computeController.isResultIncomplete())
+                return 1;
+
+            if(printWorkerLoad)
+                System.err.println("Worker load: " + Arrays.toString(computeController.getWorkerLoads()) +
+                        " requests, " + computeController.getSplitUsers() + " users split by key");
+
+            printPrefilterStatistics(stalenessFilter);
+            printStatistics(computeController);
         } catch (IOException e) {
             System.out.println("Unable to open file.");
             return 1;
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            closeOutput(output);
+        }
+
+        return 0;
+    }
+
+    /**
+     * Follows the input until 'stop' is typed on the standard input
+     * @param computeController the compute controller to send requests to
+     */
+    private void follow(ComputeController computeController, Map<String, InputPosition> inputPositions)
+            throws InterruptedException {
+        FileTailer fileTailer = new FileTailer(files.get(0), inputPositions, nParsingThreads, parsingMode, bufferSize,
+                prefetchDepth, followIntervalMillis, saveSnapshotDirectory, computeController);
+
+        Thread commands = new Thread(() -> readCommands(fileTailer), "commands");
+        commands.setDaemon(true);
+        commands.start();
+
+        QueryServer queryServer = new QueryServer(computeController);
+        if(queryPort >= 0 && !listen(queryServer))
+            fileTailer.stop();
+
+        try {
+            fileTailer.run();
+        } finally {
+            queryServer.close();
+        }
+
+        computeController.waitForTermination();
+    }
+
+    /**
+     * Answers queries typed on the standard input, and from clients of the query port if any, until 'stop' is typed.
+     * If the standard input is closed while clients can connect, they are served until the program is terminated.
+     * @param computeController the compute controller holding the state
+     * @param output the channel to write answers to
+     * @return false if the query port could not be opened
+     */
+    private boolean serveQueries(ComputeController computeController, WritableByteChannel output)
+            throws IOException, InterruptedException {
+        QueryServer queryServer = new QueryServer(computeController);
+        if(queryPort >= 0 && !listen(queryServer))
+            return false;
+
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
+            if(!queryServer.serve(reader, output))
+                queryServer.join();
+        } finally {
+            queryServer.close();
+        }
+
+        return true;
+    }
+
+    private boolean listen(QueryServer queryServer) {
+        try {
+            System.err.println("Answering queries on port " + queryServer.listen(queryPort));
+            return true;
+        } catch (IOException e) {
+            System.out.println("Unable to open query port: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Runs the shards as separate processes with the same options, and writes their merged result
+     * @param output the channel to write the result to
+     */
+    private int runShards(WritableByteChannel output) {
+        List<String> arguments = new ArrayList<>();
+
+        arguments.add("-i");
+        for(File file : files)
+            arguments.add(file.getAbsolutePath());
+
+        arguments.addAll(List.of("-p", String.valueOf(nParsingThreads), "-c", String.valueOf(nComputingThreads),
+                "--parser", parsingMode.name(), "--buffer-size", String.valueOf(bufferSize),
+                "--prefetch", String.valueOf(prefetchDepth),
+                "--batch-size", String.valueOf(batchSize), "--queue-memory", String.valueOf(queueMemory),
+                "--storage", storageType.name(), "--partitioner", partitioningMode.name(),
+                "--retain-versions", String.valueOf(retainVersions), "--retain-age", String.valueOf(retainAge)));
+
+        if(prefilter && !storageType.keepsHistory())
+            arguments.add("--prefilter");
+        if(virtualThreads)
+            arguments.add("--virtual-threads");
+        if(auto)
+            arguments.add("--auto");
+        if(printWorkerLoad)
+            arguments.add("--worker-load");
+        if(printStatistics)
+            arguments.add("--stats");
+
+        List<String> javaOptions = shardHeap != null ? List.of("-Xmx" + shardHeap) : List.of();
+
+        try {
+            new ShardCoordinator(nShards, javaOptions, arguments).run(output);
+        } catch (IOException e) {
+            System.out.println("Unable to run shards: " + e.getMessage());
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 1;
         }
 
         return 0;
     }
 
+    /**
+     * Lists the input files. Glob patterns are only expanded in the last element of a path, and the files matching a
+     * pattern are sorted by name.
+     * @param inputs the input files and patterns
+     * @return the input files, in the order given
+     */
+    private static List<File> expandInputs(List<String> inputs) throws IOException {
+        List<File> files = new ArrayList<>();
+
+        for(String input : inputs) {
+            Path path = Path.of(input);
+            String name = path.getFileName() != null ? path.getFileName().toString() : "";
+
+            if(!isGlob(name)) {
+                files.add(path.toFile());
+                continue;
+            }
+
+            Path directory = path.getParent() != null ? path.getParent() : Path.of(".");
+            PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + name);
+
+            try(Stream<Path> paths = Files.list(directory)) {
+                paths.filter(p -> Files.isRegularFile(p) && matcher.matches(p.getFileName()))
+                        .sorted()
+                        .forEach(p -> files.add(p.toFile()));
+            }
+        }
+
+        return files;
+    }
+
+    private static boolean isGlob(String name) {
+        for(char c : "*?[{".toCharArray()) {
+            if(name.indexOf(c) >= 0)
+                return true;
+        }
+
+        return false;
+    }
+
+    private static void printPrefilterStatistics(StalenessFilter stalenessFilter) {
+        if(stalenessFilter == null)
+            return;
+
+        System.err.printf("Prefilter: %d of %d requests and %d of %d values dropped as stale%n",
+                stalenessFilter.getDroppedRecords(), stalenessFilter.getRecords(),
+                stalenessFilter.getDroppedValues(), stalenessFilter.getValues());
+    }
+
+    private void printStatistics(ComputeController computeController) {
+        if(printStatistics)
+            System.err.println(computeController.getMetrics().summary());
+    }
+
+    private void saveSnapshot(ComputeController computeController, Map<String, InputPosition> inputPositions)
+            throws InterruptedException {
+        try {
+            computeController.saveSnapshot(saveSnapshotDirectory, inputPositions);
+        } catch (IOException e) {
+            System.err.println("Unable to save snapshot: " + e.getMessage());
+        }
+    }
+
+    private void readCommands(FileTailer fileTailer) {
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
+            String line;
+
+            while((line = reader.readLine()) != null) {
+                switch(line.trim()) {
+                    case "snapshot" -> fileTailer.requestSnapshot();
+                    case "save" -> fileTailer.requestSave();
+                    case "stop" -> {
+                        fileTailer.stop();
+                        return;
+                    }
+                    default -> System.err.println("Unknown command: " + line.trim());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to read commands: " + e.getMessage());
+        }
+    }
+
+    private void closeOutput(WritableByteChannel output) {
+        // Never close the standard output
+        if(outputFile == null) {
+            System.out.flush();
+            return;
+        }
+
+        try {
+            output.close();
+        } catch (IOException e) {
+            System.out.println("Unable to close output file.");
+        }
+    }
+
     public static void main(String... args) {
         int exitCode = new CommandLine(new App()).execute(args);
         System.exit(exitCode);
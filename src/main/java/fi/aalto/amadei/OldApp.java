@@ -7,6 +7,7 @@ import fi.aalto.amadei.utils.Constants;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.Channels;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -51,13 +52,19 @@ public class OldApp {
 
         // Check if the file can be opened
         try {
-            ComputeController computeController = new ComputeController(
+            ComputeController computeController = ComputeController.start(
                     Constants.DEFAULT_PARSING_THREADS,
-                    Constants.DEFAULT_COMPUTING_THREADS);
+                    Constants.DEFAULT_COMPUTING_THREADS,
+                    Constants.DEFAULT_BATCH_SIZE,
+                    Constants.DEFAULT_STORAGE_TYPE,
+                    Constants.DEFAULT_PARTITIONING_MODE,
+                    Channels.newChannel(System.out));
 
             ParallelFileReader parallelFileReader = new ParallelFileReader(
                     file,
                     Constants.DEFAULT_PARSING_THREADS,
+                    Constants.DEFAULT_PARSING_MODE,
+                    Constants.DEFAULT_BUFFER_SIZE,
                     computeController);
 
             parallelFileReader.readAll();
@@ -0,0 +1,9 @@
+package fi.aalto.amadei.beans;
+
+/**
+ * Request executed by a worker only once every request sent before it has been executed, whichever queue they were
+ * sent through. Requests sent by other threads at the same time as the barrier, barriers included, may be executed
+ * before or after it.
+ */
+public interface BarrierRequest extends Request {
+}
@@ -0,0 +1,55 @@
+package fi.aalto.amadei.beans;
+
+import fi.aalto.amadei.model.StateStorage;
+
+/**
+ * Group of update requests for the same worker, executed one after the other
+ */
+public class BatchRequest implements Request {
+
+    private final UpdateRequest[] requests;
+    private int size;
+
+    // Time the batch was sent to its worker, from System.nanoTime()
+    private long sentNanos;
+
+    public BatchRequest(int capacity) {
+        this.requests = new UpdateRequest[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Adds a request to the batch
+     * @param request the request to add
+     * @return true if the batch is full after adding the request, false otherwise
+     */
+    public boolean add(UpdateRequest request) {
+        requests[size++] = request;
+
+        return size == requests.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long getSentNanos() {
+        return sentNanos;
+    }
+
+    public void setSentNanos(long sentNanos) {
+        this.sentNanos = sentNanos;
+    }
+
+    @Override
+    public boolean execute(StateStorage stateStorage) {
+        for(int i = 0; i < size; i++)
+            requests[i].execute(stateStorage);
+
+        return false;
+    }
+}
@@ -0,0 +1,29 @@
+package fi.aalto.amadei.beans;
+
+import fi.aalto.amadei.computing.StateCollector;
+import fi.aalto.amadei.model.DeltaStateStorage;
+import fi.aalto.amadei.model.HashMapStateStorage;
+import fi.aalto.amadei.model.StateStorage;
+
+/**
+ * Writes the changes made to the state of a worker since the last snapshot or delta.
+ * Workers not keeping track of changes write an empty delta.
+ */
+public class DeltaRequest implements BarrierRequest {
+
+    private final StateCollector stateCollector;
+
+    public DeltaRequest(StateCollector stateCollector) {
+        this.stateCollector = stateCollector;
+    }
+
+    @Override
+    public boolean execute(StateStorage stateStorage) {
+        if(stateStorage instanceof DeltaStateStorage deltaStateStorage)
+            stateCollector.collect(deltaStateStorage.takeDelta());
+        else
+            stateCollector.collect(new HashMapStateStorage());
+
+        return false;
+    }
+}
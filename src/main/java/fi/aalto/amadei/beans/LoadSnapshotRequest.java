@@ -0,0 +1,43 @@
+package fi.aalto.amadei.beans;
+
+import fi.aalto.amadei.io.SnapshotReader;
+import fi.aalto.amadei.model.StateImporter;
+import fi.aalto.amadei.model.StateStorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Adds the state stored in the binary snapshot of a partition to the state of a worker
+ */
+public class LoadSnapshotRequest implements Request {
+
+    private final File file;
+    private final int partition;
+    private final int partitionCount;
+    private final CompletableFuture<Void> done;
+
+    /**
+     * @param partition the index of the partition stored in the file
+     * @param partitionCount the number of partitions of the snapshot
+     */
+    public LoadSnapshotRequest(File file, int partition, int partitionCount, CompletableFuture<Void> done) {
+        this.file = file;
+        this.partition = partition;
+        this.partitionCount = partitionCount;
+        this.done = done;
+    }
+
+    @Override
+    public boolean execute(StateStorage stateStorage) {
+        try {
+            new SnapshotReader(file, partition, partitionCount).read(new StateImporter(stateStorage));
+            done.complete(null);
+        } catch (IOException | RuntimeException e) {
+            done.completeExceptionally(e);
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,67 @@
+package fi.aalto.amadei.beans;
+
+import fi.aalto.amadei.model.DeltaStateStorage;
+import fi.aalto.amadei.model.HashMapStateStorage;
+import fi.aalto.amadei.model.StateImporter;
+import fi.aalto.amadei.model.StateStorage;
+import fi.aalto.amadei.model.VersionedStateStorage;
+import fi.aalto.amadei.query.Query;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Copies the part of the state of a worker matching a query. Every request sent to the worker before is included.
+ * Queries on the history of the state need the worker to keep a VersionedStateStorage.
+ * The matching state is copied into a HashMapStateStorage whatever the storage of the worker, since it is small and
+ * only read once to be written as JSON.
+ */
+public class QueryRequest implements BarrierRequest {
+
+    private final Query query;
+    private final CompletableFuture<StateStorage> result;
+
+    /**
+     * @param result completed with the matching state once the query is executed
+     */
+    public QueryRequest(Query query, CompletableFuture<StateStorage> result) {
+        this.query = query;
+        this.result = result;
+    }
+
+    @Override
+    public boolean execute(StateStorage stateStorage) {
+        try {
+            StateStorage matching = new HashMapStateStorage();
+            StateImporter importer = new StateImporter(matching, query::matchesUser, query::matchesKey);
+
+            if(query.isHistorical())
+                acceptVersions(stateStorage, importer);
+            // A single user is found directly, other queries scan the whole partition
+            else if(query.getType() == Query.Type.GET)
+                stateStorage.acceptUser(query.getUser(), importer);
+            else
+                stateStorage.accept(importer);
+
+            result.complete(matching);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+
+        return false;
+    }
+
+    private void acceptVersions(StateStorage stateStorage, StateImporter importer) {
+        if(stateStorage instanceof DeltaStateStorage delta)
+            stateStorage = delta.getStorage();
+
+        if(!(stateStorage instanceof VersionedStateStorage versioned))
+            throw new IllegalStateException("The state storage does not keep old versions");
+
+        if(query.getType() == Query.Type.GET)
+            versioned.acceptUserVersions(query.getUser(), query::matchesKey, query.getChangedAfter(), query.getAsOf(),
+                    importer);
+        else
+            versioned.acceptVersions(query::matchesUser, query::matchesKey, query.getChangedAfter(), query.getAsOf(),
+                    importer);
+    }
+}
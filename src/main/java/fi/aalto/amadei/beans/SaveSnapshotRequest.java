@@ -0,0 +1,42 @@
+package fi.aalto.amadei.beans;
+
+import fi.aalto.amadei.io.SnapshotWriter;
+import fi.aalto.amadei.model.StateStorage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Writes the state of a worker as a binary snapshot of its partition. The file is synced to the disk before the request
+ * is done, so that the manifest written afterwards never refers to a partition lost in a crash.
+ */
+public class SaveSnapshotRequest implements BarrierRequest {
+
+    private final File file;
+    private final int partition;
+    private final int partitionCount;
+    private final CompletableFuture<Void> done;
+
+    public SaveSnapshotRequest(File file, int partition, int partitionCount, CompletableFuture<Void> done) {
+        this.file = file;
+        this.partition = partition;
+        this.partitionCount = partitionCount;
+        this.done = done;
+    }
+
+    @Override
+    public boolean execute(StateStorage stateStorage) {
+        try(FileOutputStream out = new FileOutputStream(file)) {
+            new SnapshotWriter(out).write(stateStorage, partition, partitionCount);
+            out.getFD().sync();
+
+            done.complete(null);
+        } catch (IOException | RuntimeException e) {
+            done.completeExceptionally(e);
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,27 @@
+package fi.aalto.amadei.beans;
+
+import fi.aalto.amadei.computing.StateCollector;
+import fi.aalto.amadei.model.DeltaStateStorage;
+import fi.aalto.amadei.model.StateStorage;
+
+/**
+ * Writes the whole current state of a worker. If the worker keeps track of changes, the next delta starts from here.
+ */
+public class SnapshotRequest implements BarrierRequest {
+
+    private final StateCollector stateCollector;
+
+    public SnapshotRequest(StateCollector stateCollector) {
+        this.stateCollector = stateCollector;
+    }
+
+    @Override
+    public boolean execute(StateStorage stateStorage) {
+        stateCollector.collect(stateStorage);
+
+        if(stateStorage instanceof DeltaStateStorage deltaStateStorage)
+            deltaStateStorage.startTracking();
+
+        return false;
+    }
+}
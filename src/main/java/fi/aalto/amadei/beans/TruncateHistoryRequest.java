@@ -0,0 +1,33 @@
+package fi.aalto.amadei.beans;
+
+import fi.aalto.amadei.model.DeltaStateStorage;
+import fi.aalto.amadei.model.StateStorage;
+import fi.aalto.amadei.model.VersionedStateStorage;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Marks the history of the state of a worker as unknown before the current value of every key, once the state was
+ * loaded from a snapshot, which only holds current values. Every request sent to the worker before is included.
+ * Does nothing if the worker keeps no history.
+ */
+public class TruncateHistoryRequest implements BarrierRequest {
+
+    private final CompletableFuture<Void> done;
+
+    public TruncateHistoryRequest(CompletableFuture<Void> done) {
+        this.done = done;
+    }
+
+    @Override
+    public boolean execute(StateStorage stateStorage) {
+        if(stateStorage instanceof DeltaStateStorage delta)
+            stateStorage = delta.getStorage();
+
+        if(stateStorage instanceof VersionedStateStorage versioned)
+            versioned.truncateHistory();
+
+        done.complete(null);
+        return false;
+    }
+}
@@ -13,6 +13,14 @@ public class UpdateRequest implements Request {
     private long timestamp;
     private Map<String, String> values;
 
+    public UpdateRequest() {}
+
+    public UpdateRequest(String user, long timestamp, Map<String, String> values) {
+        this.user = user;
+        this.timestamp = timestamp;
+        this.values = values;
+    }
+
     public String getUser() {
         return user;
     }
@@ -27,7 +35,7 @@ public class UpdateRequest implements Request {
 
     @Override
     public boolean execute(StateStorage stateStorage) {
-        stateStorage.updateState(user, timestamp, values);
+        stateStorage.applyUpdate(user, timestamp, values);
 
         return false;
     }
@@ -1,14 +1,28 @@
 package fi.aalto.amadei.computing;
 
-import fi.aalto.amadei.beans.UpdateRequest;
+import fi.aalto.amadei.beans.*;
+import fi.aalto.amadei.io.InputPosition;
+import fi.aalto.amadei.io.JsonObjectOutput;
+import fi.aalto.amadei.io.SnapshotManifest;
+import fi.aalto.amadei.io.SnapshotReader;
+import fi.aalto.amadei.metrics.PipelineMetrics;
+import fi.aalto.amadei.query.Query;
+import fi.aalto.amadei.model.DeltaStateStorage;
+import fi.aalto.amadei.model.HashMapStateStorage;
+import fi.aalto.amadei.model.RetentionPolicy;
+import fi.aalto.amadei.model.StateImporter;
 import fi.aalto.amadei.model.StateStorage;
-import fi.aalto.amadei.utils.Instances;
+import fi.aalto.amadei.model.StateVisitor;
+import fi.aalto.amadei.model.StorageType;
+import fi.aalto.amadei.utils.Constants;
+import fi.aalto.amadei.utils.ThreadingMode;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The heart of application.
@@ -17,83 +31,550 @@ import java.util.concurrent.TimeUnit;
  */
 public class ComputeController {
 
+    // Interval at which a thread waiting for a query checks that the workers are still running
+    private static final long TERMINATION_CHECK_MILLIS = 100;
+
     private final int nParsingThreads;
     private final int nComputingThreads;
+    private final int batchSize;
+    private final int queueCapacity;
+    private final ThreadingMode threadingMode;
+    private final StorageType storageType;
+    private final PartitioningMode partitioningMode;
+    private final Partitioner partitioner;
+    private final StalenessFilter stalenessFilter;
+    private final ShardFilter shardFilter;
 
     private final ExecutorService executor;
     private final List<ComputeWorker> workers;
+    private final Queue<RequestDispatcher> idleDispatchers;
+
+    private final LongAdder[] workerLoads;
+    private final PipelineMetrics metrics;
+
+    private final WritableByteChannel output;
+    private final StateCollector resultCollector;
+
+    private volatile boolean parsingDone;
+    private volatile boolean workerFailed;
+
+    /**
+     * Creates a controller and starts its workers
+     * @return the controller, ready to accept requests
+     */
+    public static ComputeController start(int nParsingThreads, int nComputingThreads, int batchSize,
+                                          StorageType storageType, PartitioningMode partitioningMode,
+                                          WritableByteChannel output) {
+        return start(nParsingThreads, nComputingThreads, batchSize, Constants.DEFAULT_QUEUE_MEMORY,
+                ThreadingMode.PLATFORM, storageType, RetentionPolicy.KEEP_ALL, partitioningMode, null, null, output,
+                false);
+    }
+
+    /**
+     * @param queueMemory the memory in bytes the requests waiting in the queues of the workers may use. It is split
+     *                    among the queues of every parsing thread towards every worker; parsing threads wait while
+     *                    their queue is full. Dispatchers created beyond nParsingThreads get queues of the same size.
+     * @param threadingMode the kind of threads running the workers, also used by the readers of the input
+     * @param retention the policy deciding which old versions the workers forget, if their storage keeps a history
+     * @param stalenessFilter the filter dropping stale values before they are sent to the workers, or null
+     * @param shardFilter the filter dropping the requests of users owned by other shards, or null to keep every user
+     * @param output the channel to write the final result to, or null not to write it, e.g. when the state is only
+     *               read through queries
+     * @param trackChanges if true, workers keep track of the changes made to their state, so that deltas can be
+     *                     written with emitDelta(). The final result is then written as a snapshot, like the ones of
+     *                     emitSnapshot().
+     * @return the controller, ready to accept requests
+     */
+    public static ComputeController start(int nParsingThreads, int nComputingThreads, int batchSize, long queueMemory,
+                                          ThreadingMode threadingMode, StorageType storageType,
+                                          RetentionPolicy retention, PartitioningMode partitioningMode,
+                                          StalenessFilter stalenessFilter, ShardFilter shardFilter,
+                                          WritableByteChannel output, boolean trackChanges) {
+        ComputeController computeController = new ComputeController(nParsingThreads, nComputingThreads, batchSize,
+                queueMemory, threadingMode, storageType, partitioningMode, stalenessFilter, shardFilter, output,
+                trackChanges);
+
+        // Workers and dispatchers keep a reference to the controller, they are only created once it is constructed
+        computeController.startWorkers(retention, trackChanges);
 
-    private int parsingThreadsDone;
-    private int computingThreadsDone;
+        return computeController;
+    }
 
-    private StateStorage finalStateStorage;
+    private ComputeController(int nParsingThreads, int nComputingThreads, int batchSize, long queueMemory,
+                              ThreadingMode threadingMode, StorageType storageType, PartitioningMode partitioningMode,
+                              StalenessFilter stalenessFilter, ShardFilter shardFilter, WritableByteChannel output,
+                              boolean trackChanges) {
+        if(stalenessFilter != null && storageType.keepsHistory())
+            throw new IllegalArgumentException("Stale updates cannot be dropped, " + storageType + " keeps them");
 
-    public ComputeController(int nParsingThreads, int nComputingThreads) {
         this.nParsingThreads = nParsingThreads;
         this.nComputingThreads = nComputingThreads;
+        this.batchSize = batchSize;
+        this.queueCapacity = queueCapacity(queueMemory, nParsingThreads, nComputingThreads, batchSize);
+        this.threadingMode = threadingMode;
+        this.storageType = storageType;
+        this.partitioningMode = partitioningMode;
+        this.partitioner = partitioningMode.create(nComputingThreads);
+        this.stalenessFilter = stalenessFilter;
+        this.shardFilter = shardFilter;
 
-        this.executor = Executors.newFixedThreadPool(nComputingThreads);
+        this.executor = threadingMode.newExecutor(nComputingThreads, "worker");
         this.workers = new ArrayList<>(nComputingThreads);
+        this.idleDispatchers = new ConcurrentLinkedQueue<>();
 
-        this.parsingThreadsDone = 0;
+        this.workerLoads = new LongAdder[nComputingThreads];
+        for(int i = 0; i < nComputingThreads; i++)
+            this.workerLoads[i] = new LongAdder();
 
-        this.finalStateStorage = new StateStorage();
+        this.metrics = new PipelineMetrics(nComputingThreads);
+        this.metrics.setQueuedBatches(worker -> workers.get(worker).getQueuedRequests());
+
+        this.output = output;
+        this.resultCollector = output == null ? null : new StateCollector(
+                new JsonObjectOutput(output, trackChanges ? "snapshot" : null), partitioner, storageType, metrics,
+                nComputingThreads);
+    }
 
+    private void startWorkers(RetentionPolicy retention, boolean trackChanges) {
         for(int i = 0; i < nComputingThreads; i++) {
             // Add worker to list
-            this.workers.add(new ComputeWorker(this));
+            this.workers.add(new ComputeWorker(this, i,
+                    trackChanges ? new DeltaStateStorage(storageType, retention) : storageType.create(retention)));
 
             // Start it
             executor.execute(this.workers.get(i));
         }
 
         executor.shutdown();
+
+        // One dispatcher for every parsing thread should be enough, more will be created if needed
+        for(int i = 0; i < nParsingThreads; i++)
+            idleDispatchers.add(newDispatcher());
     }
 
     /**
-     * Submit a new request to be assigned to a worker
-     * @param request the request to execute
+     * Borrows a dispatcher to submit requests to the workers. The dispatcher must be used by the calling thread only
+     * and given back with releaseDispatcher() once done.
+     * @return a dispatcher not used by any other thread
      */
-    public synchronized void sendRequestToWorker(UpdateRequest request) {
-        // Compute hash of user
-        int hash = request.getUser().hashCode();
+    public RequestDispatcher acquireDispatcher() {
+        RequestDispatcher dispatcher = idleDispatchers.poll();
+
+        // Every dispatcher is busy, create a new one
+        if(dispatcher == null)
+            dispatcher = newDispatcher();
 
-        // Assign always the same user to the same worker
-        workers.get(hash % nComputingThreads).addToQueue(request);
+        return dispatcher;
+    }
+
+    private RequestDispatcher newDispatcher() {
+        return new RequestDispatcher(this, partitioner, stalenessFilter, shardFilter, metrics, workers, queueCapacity,
+                batchSize);
     }
 
     /**
-     * Signals that parsing is done. Once every parsing thread has signaled it, the information is propagated to every
-     * computing thread to let them know to stop the computation when their queue is empty since no more requests will
-     * come.
+     * Computes the capacity of the queue between a dispatcher and a worker, such that the queues of nParsingThreads
+     * dispatchers towards every worker fit in the given memory
+     * @return the capacity in requests, never less than two batches
      */
-    public synchronized void parsingDone() {
-        // Increase number of parsing threads done by one
-        parsingThreadsDone++;
+    static int queueCapacity(long queueMemory, int nParsingThreads, int nComputingThreads, int batchSize) {
+        long queues = (long) nParsingThreads * nComputingThreads;
+        long capacity = queueMemory / Constants.ESTIMATED_REQUEST_SIZE / queues;
 
-        // If every parsing thread is done, notify all computing workers they should stop when the queue is empty
-        if(parsingThreadsDone >= nParsingThreads) {
-            for(int i = 0; i < nComputingThreads; i++)
-                workers.get(i).parsingDone();
-        }
+        return (int) Math.max(2L * batchSize, Math.min(Integer.MAX_VALUE, capacity));
+    }
+
+    public ThreadingMode getThreadingMode() {
+        return threadingMode;
+    }
+
+    public StorageType getStorageType() {
+        return storageType;
+    }
+
+    /**
+     * @return the number of requests a queue between a dispatcher and a worker can hold
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Gives back a dispatcher borrowed with acquireDispatcher(). Requests still waiting in a batch are sent to the
+     * workers.
+     * @param dispatcher the dispatcher to give back
+     */
+    public void releaseDispatcher(RequestDispatcher dispatcher) {
+        dispatcher.flush();
+
+        idleDispatchers.add(dispatcher);
+    }
+
+    /**
+     * Accounts requests sent to a worker
+     * @param worker the index of the worker
+     * @param nRequests the number of requests
+     */
+    void recordLoad(int worker, int nRequests) {
+        workerLoads[worker].add(nRequests);
+    }
+
+    /**
+     * @return the number of requests sent to every worker so far
+     */
+    public long[] getWorkerLoads() {
+        long[] loads = new long[nComputingThreads];
+
+        for(int i = 0; i < nComputingThreads; i++)
+            loads[i] = workerLoads[i].sum();
+
+        return loads;
+    }
+
+    /**
+     * @return the counters of every stage of the pipeline
+     */
+    public PipelineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the number of users whose keys have been spread over several workers
+     */
+    public int getSplitUsers() {
+        return partitioner.splitUsers().size();
+    }
+
+    /**
+     * Computes how full the queues of the workers are
+     * @return the fill ratio of the fullest queue of any worker, between 0 and 1
+     */
+    public double getQueueFill() {
+        double fill = 0;
+
+        for(ComputeWorker worker : workers)
+            fill = Math.max(fill, worker.getQueueFill());
+
+        return fill;
+    }
+
+    /**
+     * Signals that parsing is done. The information is propagated to every computing thread to let them know to stop
+     * the computation when their queue is empty since no more requests will come.
+     * To be called once every chunk of the file has been parsed.
+     */
+    public void parsingDone() {
+        parsingDone = true;
+
+        for(int i = 0; i < nComputingThreads; i++)
+            workers.get(i).parsingDone();
     }
 
     /**
-     * Sends a partial state storage to the controller in order to be merged with all others.
+     * Sends the partial state storage of a worker to the output.
      * This shall be used by computing workers once they are done executing requests.
      * @param partialStateStorage the state storage of a worker
      */
-    public synchronized void sendResult(StateStorage partialStateStorage) {
-        computingThreadsDone++;
+    public void sendResult(StateStorage partialStateStorage) {
+        if(resultCollector != null)
+            resultCollector.collect(partialStateStorage);
+    }
+
+    /**
+     * Records that a worker stopped because of an error, so that its requests are known to be lost. Its part of the
+     * final result is given up, so that the result of the other workers is still closed.
+     * This shall be used by computing workers only.
+     * @param worker the index of the worker
+     * @param error the error that stopped it
+     */
+    void workerFailed(int worker, Throwable error) {
+        System.err.println("Computing thread " + worker + " failed: " + error);
+        workerFailed = true;
+
+        if(resultCollector != null)
+            resultCollector.giveUp();
+    }
+
+    /**
+     * @return true if part of the final result could not be written, or a worker failed. Only meaningful once the
+     * workers terminated.
+     */
+    public boolean isResultIncomplete() {
+        return workerFailed || resultCollector != null && resultCollector.isIncomplete();
+    }
+
+    /**
+     * Writes the whole current state of every worker as a JSON object, wrapped in a "snapshot" member, and waits until
+     * it is written. Every request sent before is included.
+     * Must be called while no other thread is sending requests.
+     */
+    public void emitSnapshot() throws InterruptedException {
+        StateCollector stateCollector = newCollector("snapshot");
 
-        // Merge the partial storage with the final one
-        finalStateStorage.mergeWith(partialStateStorage);
+        broadcast(new SnapshotRequest(stateCollector));
+        stateCollector.await();
+    }
 
-        // If every computing thread is done prints the result
-        if(computingThreadsDone >= nComputingThreads) {
-            String finalResult = Instances.gson().toJson(finalStateStorage.getStateOfAllUsers());
+    /**
+     * Writes the changes made to the state of every worker since the last snapshot or delta as a JSON object, wrapped
+     * in a "delta" member, and waits until it is written. Every request sent before is included.
+     * Must be called while no other thread is sending requests.
+     */
+    public void emitDelta() throws InterruptedException {
+        StateCollector stateCollector = newCollector("delta");
 
-            System.out.println(finalResult);
+        broadcast(new DeltaRequest(stateCollector));
+        stateCollector.await();
+    }
+
+    /**
+     * Writes the state of every worker as a binary snapshot, each worker writing its own partition in parallel with
+     * the others, and waits until it is written. Every request sent before is included.
+     * Must be called while no other thread is sending requests.
+     * @param directory the directory to write the snapshot into, created if needed
+     * @param inputPositions how far every input file was already read, by input key, see InputPosition.key()
+     */
+    public void saveSnapshot(File directory, Map<String, InputPosition> inputPositions) throws IOException,
+            InterruptedException {
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create " + directory);
+
+        // Parsing is paused, the set of split users cannot change
+        SnapshotManifest manifest = new SnapshotManifest(SnapshotManifest.nextGeneration(directory), nComputingThreads,
+                partitioningMode.name(), inputPositions, partitioner.splitUsers());
+
+        List<CompletableFuture<Void>> partitions = new ArrayList<>(nComputingThreads);
+        RequestDispatcher dispatcher = acquireDispatcher();
+
+        try {
+            for(int i = 0; i < nComputingThreads; i++) {
+                CompletableFuture<Void> done = new CompletableFuture<>();
+                partitions.add(done);
+
+                dispatcher.sendTo(i, new SaveSnapshotRequest(manifest.partitionFile(directory, i), i,
+                        nComputingThreads, done));
+            }
+        } finally {
+            releaseDispatcher(dispatcher);
+        }
+
+        await(partitions);
+        manifest.write(directory);
+    }
+
+    /**
+     * Adds the state stored in a binary snapshot to the state of the workers.
+     * If the snapshot was partitioned like the workers, every worker loads its own partition in parallel with the
+     * others. Otherwise, partitions are read in parallel by nParsingThreads threads and their content is sent to the
+     * workers like parsed requests.
+     * Must be called before any request is sent.
+     * @param directory the snapshot directory
+     * @param manifest the manifest of the snapshot
+     */
+    public void loadSnapshot(File directory, SnapshotManifest manifest) throws IOException, InterruptedException {
+        List<CompletableFuture<Void>> partitions = new ArrayList<>(manifest.getPartitionCount());
+
+        boolean samePartitions = manifest.getPartitionCount() == nComputingThreads
+                && manifest.getPartitioningMode().equals(partitioningMode.name())
+                && manifest.getSplitUsers().isEmpty();
+
+        if(samePartitions) {
+            RequestDispatcher dispatcher = acquireDispatcher();
+
+            try {
+                for(int i = 0; i < nComputingThreads; i++) {
+                    CompletableFuture<Void> done = new CompletableFuture<>();
+                    partitions.add(done);
+
+                    dispatcher.sendTo(i, new LoadSnapshotRequest(manifest.partitionFile(directory, i), i,
+                            nComputingThreads, done));
+                }
+            } finally {
+                releaseDispatcher(dispatcher);
+            }
+
+            await(partitions);
+        } else {
+            ExecutorService readers = threadingMode.newExecutor(nParsingThreads, "snapshot-reader");
+
+            try {
+                for(int i = 0; i < manifest.getPartitionCount(); i++) {
+                    File file = manifest.partitionFile(directory, i);
+                    int partition = i;
+
+                    partitions.add(CompletableFuture.runAsync(() -> dispatchSnapshot(file, partition,
+                            manifest.getPartitionCount()), readers));
+                }
+
+                await(partitions);
+            } finally {
+                readers.shutdown();
+            }
+        }
+
+        // The snapshot only holds current values: what came before them is unknown
+        if(storageType.keepsHistory())
+            truncateHistory();
+    }
+
+    private void truncateHistory() throws IOException, InterruptedException {
+        List<CompletableFuture<Void>> workers = new ArrayList<>(nComputingThreads);
+        RequestDispatcher dispatcher = acquireDispatcher();
+
+        try {
+            for(int i = 0; i < nComputingThreads; i++) {
+                CompletableFuture<Void> done = new CompletableFuture<>();
+                workers.add(done);
+
+                dispatcher.sendTo(i, new TruncateHistoryRequest(done));
+            }
+        } finally {
+            releaseDispatcher(dispatcher);
+        }
+
+        await(workers);
+    }
+
+    /**
+     * Reads the binary snapshot of a partition, sending every stored value to the worker now in charge of it
+     * @param file the snapshot of the partition
+     * @param partition the index of the partition
+     * @param partitionCount the number of partitions of the snapshot
+     */
+    private void dispatchSnapshot(File file, int partition, int partitionCount) {
+        RequestDispatcher dispatcher = acquireDispatcher();
+
+        try {
+            new SnapshotReader(file, partition, partitionCount).read(new StateVisitor() {
+                private String user;
+
+                @Override
+                public void beginUser(String user) {
+                    this.user = user;
+                }
+
+                @Override
+                public void value(String key, long timestamp, String value) {
+                    // Requests are kept until executed, every value needs its own map
+                    Map<String, String> values = new HashMap<>(2);
+                    values.put(key, value);
+
+                    dispatcher.dispatch(new UpdateRequest(user, timestamp, values));
+                }
+
+                @Override
+                public void endUser() {}
+            });
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        } finally {
+            releaseDispatcher(dispatcher);
+        }
+    }
+
+    /**
+     * Finds the part of the state matching a query, without writing the rest of it.
+     * A single user is only looked up in the worker in charge of it (or in every worker, if it is split by key), other
+     * queries are executed by every worker in parallel. Every request sent before is included.
+     * Can be called by several threads at the same time, and while other threads are sending requests: their
+     * requests may or may not be included.
+     * @param query the query
+     * @return a new HashMapStateStorage containing the matching state, whatever the storage of the workers
+     * @throws IllegalArgumentException if the query looks at the history and the storage does not keep it
+     * @throws IllegalStateException if the query fails, or if the workers are stopped and cannot execute it
+     */
+    public StateStorage query(Query query) throws InterruptedException {
+        if(query.isHistorical() && storageType != StorageType.VERSIONED)
+            throw new IllegalArgumentException("asof and diff queries need --storage " + StorageType.VERSIONED);
+
+        if(parsingDone)
+            throw new IllegalStateException("Unable to execute query: the computing threads are stopped");
+
+        List<Integer> targets = new ArrayList<>();
+
+        if(query.getType() == Query.Type.GET && !partitioner.isSplit(query.getUser())) {
+            targets.add(partitioner.partitionOf(query.getUser()));
+        } else {
+            for(int i = 0; i < nComputingThreads; i++)
+                targets.add(i);
+        }
+
+        List<CompletableFuture<StateStorage>> results = new ArrayList<>(targets.size());
+        RequestDispatcher dispatcher = acquireDispatcher();
+
+        try {
+            for(int worker : targets) {
+                CompletableFuture<StateStorage> result = new CompletableFuture<>();
+                results.add(result);
+
+                dispatcher.sendTo(worker, new QueryRequest(query, result));
+            }
+        } finally {
+            releaseDispatcher(dispatcher);
+        }
+
+        try {
+            if(results.size() == 1)
+                return awaitResult(results.get(0), workers.get(targets.get(0)));
+
+            // A split user may have an older value of a key in another worker: keep the most recent one
+            StateStorage merged = new HashMapStateStorage();
+            for(int i = 0; i < results.size(); i++)
+                awaitResult(results.get(i), workers.get(targets.get(i))).accept(new StateImporter(merged));
+
+            return merged;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to execute query: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Waits for the result of a request, unless the worker it was sent to stops before executing it
+     * @param result the result of the request
+     * @param worker the worker the request was sent to
+     * @return the result
+     * @throws IllegalStateException if the worker stopped without executing the request
+     */
+    private static <T> T awaitResult(CompletableFuture<T> result, ComputeWorker worker) throws InterruptedException,
+            ExecutionException {
+        while(true) {
+            try {
+                return result.get(TERMINATION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // The worker may have executed the request right before stopping
+                if(worker.isTerminated() && !result.isDone())
+                    throw new IllegalStateException("Unable to execute query: the computing threads are stopped");
+            }
+        }
+    }
+
+    /**
+     * Waits for tasks done by several threads, rethrowing the first error
+     * @param tasks the tasks
+     */
+    private static void await(List<CompletableFuture<Void>> tasks) throws IOException, InterruptedException {
+        try {
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).get();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof IOException cause)
+                throw cause;
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private StateCollector newCollector(String name) {
+        return new StateCollector(new JsonObjectOutput(output, name), partitioner, storageType, metrics,
+                nComputingThreads);
+    }
+
+    private void broadcast(Request request) {
+        RequestDispatcher dispatcher = acquireDispatcher();
+
+        try {
+            dispatcher.broadcast(request);
+        } finally {
+            releaseDispatcher(dispatcher);
         }
     }
 
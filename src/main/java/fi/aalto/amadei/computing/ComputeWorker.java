@@ -1,58 +1,252 @@
 package fi.aalto.amadei.computing;
 
+import fi.aalto.amadei.beans.BarrierRequest;
+import fi.aalto.amadei.beans.BatchRequest;
 import fi.aalto.amadei.beans.DoneRequest;
 import fi.aalto.amadei.beans.Request;
+import fi.aalto.amadei.metrics.PipelineMetrics;
 import fi.aalto.amadei.model.StateStorage;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * Processes a single request at a time. Has a queue to store all pending requests. Spawned by the ComputeController.
+ * Processes a single request at a time. Has one queue for every RequestDispatcher to store all pending requests, so
+ * that producers never need to synchronize with each other. Spawned by the ComputeController.
  */
 public class ComputeWorker implements Runnable {
 
-    private final BlockingQueue<Request> requestQueue;
+    // Number of empty polls before going to sleep
+    private static final int SPIN_TRIES = 100;
+
+    // Upper bound of a sleep, in case a wake-up was missed
+    private static final long PARK_NANOS = 100_000;
+
+    private volatile List<SpscRingBuffer<Request>> requestQueues;
+    private int nextQueue;
+
+    private final int index;
     private final StateStorage stateStorage;
 
     private final ComputeController computeController;
+    private final PipelineMetrics metrics;
 
-    public ComputeWorker(ComputeController computeController) {
-        this.requestQueue = new ArrayBlockingQueue<>(1_000_000);
-        this.stateStorage = new StateStorage();
+    private volatile Thread thread;
+    private volatile boolean sleeping;
+    private volatile boolean parsingDone;
+    private volatile boolean terminated;
+
+    public ComputeWorker(ComputeController computeController, int index, StateStorage stateStorage) {
+        this.requestQueues = List.of();
+        this.index = index;
+        this.stateStorage = stateStorage;
 
         this.computeController = computeController;
+        this.metrics = computeController.getMetrics();
+    }
+
+    /**
+     * Adds a new queue to poll requests from. Called once by every new RequestDispatcher.
+     * @param queue the queue to add
+     */
+    synchronized void addQueue(SpscRingBuffer<Request> queue) {
+        List<SpscRingBuffer<Request>> queues = new ArrayList<>(requestQueues);
+        queues.add(queue);
+
+        requestQueues = List.copyOf(queues);
     }
 
     /**
-     * Adds a new request to the queue, to be eventually processed.
-     * @param request the request to add to the queue
+     * Wakes the worker up if it is waiting for new requests
      */
-    public synchronized void addToQueue(Request request) {
-        // Add new request to the worker's queue
-        requestQueue.add(request);
+    void wakeUp() {
+        if(sleeping) {
+            Thread t = thread;
+
+            if(t != null)
+                LockSupport.unpark(t);
+        }
     }
 
     /**
      * Notifies the worker that all parsing is done, therefore they should finish working and then terminate.
      */
-    public synchronized void parsingDone() {
-        this.requestQueue.add(new DoneRequest(computeController));
+    public void parsingDone() {
+        parsingDone = true;
+
+        Thread t = thread;
+        if(t != null)
+            LockSupport.unpark(t);
+    }
+
+    /**
+     * @return true once the worker stopped executing requests: requests sent afterwards are never executed
+     */
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    /**
+     * Takes the next pending request from any of the queues
+     * @return the next request, or null if all queues are empty
+     */
+    private Request poll() {
+        List<SpscRingBuffer<Request>> queues = requestQueues;
+
+        for(int i = 0; i < queues.size(); i++) {
+            int index = (nextQueue + i) % queues.size();
+            Request request = queues.get(index).poll();
+
+            if(request != null) {
+                // Keep draining the same queue next time
+                nextQueue = index;
+                return request;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Computes how full the queues of the worker are. A value close to 1 means that at least one producer is about
+     * to wait for the worker.
+     * @return the fill ratio of the fullest queue, between 0 and 1
+     */
+    public double getQueueFill() {
+        double fill = 0;
+
+        for(SpscRingBuffer<Request> queue : requestQueues)
+            fill = Math.max(fill, (double) queue.size() / queue.capacity());
+
+        return fill;
+    }
+
+    /**
+     * @return the number of requests (mostly batches) waiting in the queues of the worker
+     */
+    public long getQueuedRequests() {
+        long queued = 0;
+
+        for(SpscRingBuffer<Request> queue : requestQueues)
+            queued += queue.size();
+
+        return queued;
+    }
+
+    /**
+     * Executes a request, accounting the time spent on batches and the time they spent in the queue
+     * @param request the request to execute
+     * @return true if the worker must stop, false otherwise
+     */
+    private boolean execute(Request request) {
+        if(!(request instanceof BatchRequest batch))
+            return request.execute(stateStorage);
+
+        long start = System.nanoTime();
+        boolean stop = batch.execute(stateStorage);
+
+        metrics.recordBatch(index, batch.size(), start - batch.getSentNanos(), System.nanoTime() - start);
+
+        return stop;
+    }
+
+    /**
+     * Executes the requests waiting in the other queues when a barrier is taken from one of them. Every request sent
+     * before the barrier is among them, whichever queue it was sent through. Requests sent afterwards through other
+     * queues are left for later, so that the drain ends even while other threads keep sending requests; those already
+     * queued may be executed before the barrier.
+     * Barriers found while draining are executed once the drain is over: every request sent before them was already
+     * queued when the drain started.
+     * @param barrierQueue the index of the queue the barrier was taken from
+     */
+    private void drain(int barrierQueue) {
+        List<SpscRingBuffer<Request>> queues = requestQueues;
+        List<Request> barriers = new ArrayList<>();
+
+        for(int i = 0; i < queues.size(); i++) {
+            // Requests before the barrier in its own queue are already executed
+            if(i == barrierQueue)
+                continue;
+
+            SpscRingBuffer<Request> queue = queues.get(i);
+
+            for(int pending = queue.size(); pending > 0; pending--) {
+                Request request = queue.poll();
+
+                if(request instanceof BarrierRequest)
+                    barriers.add(request);
+                else
+                    execute(request);
+            }
+        }
+
+        for(Request barrier : barriers)
+            execute(barrier);
+    }
+
+    private boolean hasPendingRequests() {
+        for(SpscRingBuffer<Request> queue : requestQueues) {
+            if(!queue.isEmpty())
+                return true;
+        }
+
+        return false;
     }
 
     @Override
     public void run() {
+        thread = Thread.currentThread();
+
         try {
+            work();
+        } catch (RuntimeException | Error e) {
+            // The requests of the worker are lost: the result must not look complete
+            computeController.workerFailed(index, e);
+        } finally {
+            terminated = true;
+        }
+    }
+
+    private void work() {
+        int emptyPolls = 0;
 
-            while(true) {
-                Request request = requestQueue.take();
+        while(true) {
+            Request request = poll();
 
-                if(request.execute(stateStorage))
+            if(request != null) {
+                emptyPolls = 0;
+
+                // Requests sent before the barrier through other queues must be executed first
+                if(request instanceof BarrierRequest)
+                    drain(nextQueue);
+
+                if(execute(request))
                     break;
+
+                continue;
             }
 
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            // Producers are done before the flag is set: if the queues are still empty now, nothing else will come
+            if(parsingDone) {
+                if(hasPendingRequests())
+                    continue;
+
+                new DoneRequest(computeController).execute(stateStorage);
+                break;
+            }
+
+            // Wait for new requests
+            if(++emptyPolls < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else {
+                sleeping = true;
+
+                if(!hasPendingRequests() && !parsingDone)
+                    LockSupport.parkNanos(this, PARK_NANOS);
+
+                sleeping = false;
+            }
         }
     }
 }
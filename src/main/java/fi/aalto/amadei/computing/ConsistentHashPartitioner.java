@@ -0,0 +1,56 @@
+package fi.aalto.amadei.computing;
+
+import java.util.Arrays;
+
+/**
+ * Assigns users to workers with consistent hashing. Every worker owns many virtual nodes placed on a ring of hash
+ * codes, and a user belongs to the worker owning the first virtual node after the hash code of the user.
+ * Many virtual nodes keep the share of every worker close to even, and changing the number of workers only moves the
+ * users of the added or removed worker.
+ */
+public class ConsistentHashPartitioner implements Partitioner {
+
+    private static final int VIRTUAL_NODES = 256;
+
+    // Positions of the virtual nodes on the ring, sorted, and the worker owning each of them
+    private final int[] points;
+    private final int[] owners;
+
+    public ConsistentHashPartitioner(int nPartitions) {
+        long[] nodes = new long[nPartitions * VIRTUAL_NODES];
+
+        for(int partition = 0; partition < nPartitions; partition++) {
+            for(int node = 0; node < VIRTUAL_NODES; node++) {
+                int point = Partitioner.mix(partition * 0x9E3779B9 + Partitioner.mix(node + 1));
+
+                // Sort by position, keeping the owner in the low bits
+                nodes[partition * VIRTUAL_NODES + node] = ((long) point << 32) | partition;
+            }
+        }
+
+        Arrays.sort(nodes);
+
+        this.points = new int[nodes.length];
+        this.owners = new int[nodes.length];
+
+        for(int i = 0; i < nodes.length; i++) {
+            points[i] = (int) (nodes[i] >> 32);
+            owners[i] = (int) nodes[i];
+        }
+    }
+
+    @Override
+    public int partitionOf(String user) {
+        int hash = Partitioner.mix(user.hashCode());
+
+        int index = Arrays.binarySearch(points, hash);
+        if(index < 0)
+            index = -index - 1;
+
+        // Wrap around the ring
+        if(index == points.length)
+            index = 0;
+
+        return owners[index];
+    }
+}
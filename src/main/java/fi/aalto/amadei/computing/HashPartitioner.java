@@ -0,0 +1,18 @@
+package fi.aalto.amadei.computing;
+
+/**
+ * Assigns every user to a worker according to their mixed hash code
+ */
+public class HashPartitioner implements Partitioner {
+
+    private final int nPartitions;
+
+    public HashPartitioner(int nPartitions) {
+        this.nPartitions = nPartitions;
+    }
+
+    @Override
+    public int partitionOf(String user) {
+        return Math.floorMod(Partitioner.mix(user.hashCode()), nPartitions);
+    }
+}
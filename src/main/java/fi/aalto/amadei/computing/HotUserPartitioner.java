@@ -0,0 +1,115 @@
+package fi.aalto.amadei.computing;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns users to workers like another partitioner, except for hot users: users sending so many requests that they
+ * alone would overload their worker. The keys of a hot user are spread over all workers.
+ * Every dispatcher estimates how many requests each user sends with a small count-min sketch of its own, so that
+ * counting never needs synchronization. Sketches belong to dispatchers rather than threads, so that they keep counting
+ * across chunks when every chunk is read by a new virtual thread. A user whose estimated share of the requests of a
+ * dispatcher exceeds half of the fair share of a worker becomes hot, and stays hot until the end.
+ */
+public class HotUserPartitioner implements Partitioner {
+
+    // A user is never hot before sending this many requests through a single dispatcher
+    private static final int MIN_HOT_COUNT = 1024;
+
+    private final Partitioner partitioner;
+    private final int nPartitions;
+
+    private final Set<String> hotUsers;
+    private volatile boolean anyHotUser;
+
+    public HotUserPartitioner(Partitioner partitioner, int nPartitions) {
+        this.partitioner = partitioner;
+        this.nPartitions = nPartitions;
+
+        this.hotUsers = ConcurrentHashMap.newKeySet();
+    }
+
+    @Override
+    public int partitionOf(String user) {
+        return partitioner.partitionOf(user);
+    }
+
+    @Override
+    public int partitionOf(String user, String key) {
+        return Math.floorMod(Partitioner.mix(user.hashCode() * 31 + key.hashCode()), nPartitions);
+    }
+
+    @Override
+    public LoadRecorder newRecorder() {
+        // Splitting is pointless with a single worker
+        if(nPartitions == 1)
+            return Partitioner.super.newRecorder();
+
+        CountMinSketch sketch = new CountMinSketch();
+
+        return user -> {
+            long count = sketch.add(user.hashCode());
+
+            if(count >= MIN_HOT_COUNT && count * 2 * nPartitions > sketch.total() && !isSplit(user)) {
+                hotUsers.add(user);
+                anyHotUser = true;
+            }
+        };
+    }
+
+    @Override
+    public boolean isSplit(String user) {
+        return anyHotUser && hotUsers.contains(user);
+    }
+
+    @Override
+    public Set<String> splitUsers() {
+        return Collections.unmodifiableSet(hotUsers);
+    }
+
+    /**
+     * Approximate counters of the requests of every user. Counts can only be overestimated, by at most a small
+     * fraction of the total. Counts are periodically halved, so that users that used to be hot fade away.
+     */
+    private static class CountMinSketch {
+
+        private static final int DEPTH = 4;
+        private static final int WIDTH = 4096;
+
+        private static final long DECAY_PERIOD = 1 << 20;
+
+        private final int[] counters = new int[DEPTH * WIDTH];
+        private long total;
+
+        /**
+         * Counts a new occurrence of a hash code
+         * @return the estimated number of occurrences, including the new one
+         */
+        long add(int hash) {
+            if(++total >= DECAY_PERIOD)
+                decay();
+
+            int min = Integer.MAX_VALUE;
+
+            for(int row = 0; row < DEPTH; row++) {
+                int index = row * WIDTH + Math.floorMod(Partitioner.mix(hash + row * 0x9E3779B9), WIDTH);
+
+                min = Math.min(min, ++counters[index]);
+            }
+
+            return min;
+        }
+
+        long total() {
+            return total;
+        }
+
+        private void decay() {
+            for(int i = 0; i < counters.length; i++)
+                counters[i] >>>= 1;
+
+            total >>>= 1;
+        }
+    }
+}
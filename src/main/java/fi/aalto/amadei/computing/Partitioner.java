@@ -0,0 +1,83 @@
+package fi.aalto.amadei.computing;
+
+import java.util.Set;
+
+/**
+ * Decides which compute worker is in charge of a request.
+ * By default every user belongs to a single worker, so that workers never share any state. A partitioner can also
+ * split some users by key: since every key keeps the value with the most recent timestamp independently of the
+ * others, the keys of a user can be updated by different workers and their states merged at the end.
+ * Implementations must be thread safe, since every parsing thread routes its own requests.
+ */
+public interface Partitioner {
+
+    /**
+     * Computes the worker in charge of a user
+     * @param user the user
+     * @return the index of the worker
+     */
+    int partitionOf(String user);
+
+    /**
+     * Computes the worker in charge of a single key of a user split by key
+     * @param user the user
+     * @param key the key
+     * @return the index of the worker
+     */
+    default int partitionOf(String user, String key) {
+        return partitionOf(user);
+    }
+
+    /**
+     * Creates a recorder of the requests routed by a single producer. Every RequestDispatcher has its own, so that
+     * recording never needs synchronization, whichever thread the dispatcher is used by.
+     * @return a new recorder, doing nothing unless the partitioner adapts to the load
+     */
+    default LoadRecorder newRecorder() {
+        return user -> {};
+    }
+
+    /**
+     * @param user the user
+     * @return true if the keys of the user are spread over several workers, false if it belongs to a single worker
+     */
+    default boolean isSplit(String user) {
+        return false;
+    }
+
+    /**
+     * @return every user whose keys have been spread over several workers so far
+     */
+    default Set<String> splitUsers() {
+        return Set.of();
+    }
+
+    /**
+     * Spreads the bits of a hash code, so that hash codes differing only in their high bits (like those of short
+     * Strings with a common prefix) still end up in different partitions
+     * @param hash the hash code
+     * @return the mixed hash code
+     */
+    static int mix(int hash) {
+        // Finalizer of MurmurHash3
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+
+        return hash;
+    }
+
+    /**
+     * Records the requests routed by a single producer. Used by partitioners adapting to the load.
+     */
+    interface LoadRecorder {
+
+        /**
+         * Records that a request of a user is being routed
+         * @param user the user
+         */
+        void record(String user);
+    }
+}
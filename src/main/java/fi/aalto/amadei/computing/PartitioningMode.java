@@ -0,0 +1,38 @@
+package fi.aalto.amadei.computing;
+
+import java.util.function.IntFunction;
+
+/**
+ * Available strategies to assign requests to compute workers
+ */
+public enum PartitioningMode {
+
+    /**
+     * Mixed hash code of the user, see HashPartitioner
+     */
+    HASH(HashPartitioner::new),
+
+    /**
+     * Consistent hashing with virtual nodes, see ConsistentHashPartitioner
+     */
+    CONSISTENT(ConsistentHashPartitioner::new),
+
+    /**
+     * Mixed hash code of the user, with the keys of hot users spread over all workers, see HotUserPartitioner
+     */
+    HOT(n -> new HotUserPartitioner(new HashPartitioner(n), n));
+
+    private final IntFunction<Partitioner> factory;
+
+    PartitioningMode(IntFunction<Partitioner> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @param nPartitions the number of compute workers
+     * @return a new Partitioner of this type
+     */
+    public Partitioner create(int nPartitions) {
+        return factory.apply(nPartitions);
+    }
+}
@@ -0,0 +1,211 @@
+package fi.aalto.amadei.computing;
+
+import fi.aalto.amadei.beans.BatchRequest;
+import fi.aalto.amadei.beans.Request;
+import fi.aalto.amadei.beans.UpdateRequest;
+import fi.aalto.amadei.metrics.PipelineMetrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends requests from a single producer to the compute workers.
+ * Every dispatcher owns a private single-producer single-consumer queue towards every worker, so producers never
+ * contend with each other. Requests are collected in a batch for every worker and the queue is only touched once the
+ * batch is full (or on flush), so the cost of the hand-off is shared by the whole batch.
+ * A dispatcher must be used by one thread at a time: it is borrowed from the ComputeController with
+ * acquireDispatcher() and given back with releaseDispatcher().
+ */
+public class RequestDispatcher {
+
+    // Number of busy-spins before yielding while a queue is full
+    private static final int SPIN_TRIES = 100;
+
+    // Number of yields before parking while a queue is full
+    private static final int YIELD_TRIES = 100;
+
+    private static final long PARK_NANOS = 50_000;
+
+    private final ComputeController computeController;
+    private final Partitioner partitioner;
+    private final Partitioner.LoadRecorder loadRecorder;
+    private final StalenessFilter stalenessFilter;
+    private final ShardFilter shardFilter;
+    private final PipelineMetrics metrics;
+    private final List<ComputeWorker> workers;
+    private final List<SpscRingBuffer<Request>> queues;
+
+    private final int batchSize;
+    private final BatchRequest[] batches;
+
+    RequestDispatcher(ComputeController computeController, Partitioner partitioner, StalenessFilter stalenessFilter,
+                      ShardFilter shardFilter, PipelineMetrics metrics, List<ComputeWorker> workers, int queueCapacity,
+                      int batchSize) {
+        this.computeController = computeController;
+        this.partitioner = partitioner;
+        this.loadRecorder = partitioner.newRecorder();
+        this.stalenessFilter = stalenessFilter;
+        this.shardFilter = shardFilter;
+        this.metrics = metrics;
+        this.workers = workers;
+        this.queues = new ArrayList<>(workers.size());
+
+        this.batchSize = batchSize;
+        this.batches = new BatchRequest[workers.size()];
+
+        // Create a queue towards every worker. Capacity is expressed in requests, the queue holds batches.
+        for(int i = 0; i < workers.size(); i++) {
+            SpscRingBuffer<Request> queue = new SpscRingBuffer<>(Math.max(2, queueCapacity / batchSize));
+            queues.add(queue);
+            workers.get(i).addQueue(queue);
+
+            batches[i] = new BatchRequest(batchSize);
+        }
+    }
+
+    /**
+     * Adds a request to the batch of the worker in charge of its user. Once the batch is full, it is sent to the
+     * worker, blocking while the queue towards that worker is full.
+     * If the user is split by key, the request is split in one request for every worker in charge of its keys.
+     * Requests of users owned by other shards are dropped first, if a shard filter is used, then values already known
+     * to be stale, if a staleness filter is used.
+     * @param request the request to execute
+     */
+    public void dispatch(UpdateRequest request) {
+        if(shardFilter != null && !shardFilter.owns(request.getUser()))
+            return;
+
+        if(stalenessFilter != null) {
+            request = stalenessFilter.filter(request);
+
+            if(request == null)
+                return;
+        }
+
+        String user = request.getUser();
+
+        loadRecorder.record(user);
+
+        if(partitioner.isSplit(user) && request.getValues() != null) {
+            dispatchSplit(request);
+            return;
+        }
+
+        add(partitioner.partitionOf(user), request);
+    }
+
+    private void dispatchSplit(UpdateRequest request) {
+        // A request without any value still creates its user: it goes to the worker the user belongs to
+        if(request.getValues().isEmpty()) {
+            add(partitioner.partitionOf(request.getUser()), request);
+            return;
+        }
+
+        List<Map<String, String>> parts = new ArrayList<>(Collections.nCopies(batches.length, null));
+
+        for(Map.Entry<String, String> entry : request.getValues().entrySet()) {
+            int worker = partitioner.partitionOf(request.getUser(), entry.getKey());
+
+            if(parts.get(worker) == null)
+                parts.set(worker, new HashMap<>());
+
+            parts.get(worker).put(entry.getKey(), entry.getValue());
+        }
+
+        for(int i = 0; i < parts.size(); i++) {
+            if(parts.get(i) != null)
+                add(i, new UpdateRequest(request.getUser(), request.getTimestamp(), parts.get(i)));
+        }
+    }
+
+    private void add(int worker, UpdateRequest request) {
+        if(batches[worker].add(request))
+            send(worker);
+    }
+
+    /**
+     * Sends all non-empty batches to their workers, even if they are not full
+     */
+    public void flush() {
+        for(int i = 0; i < batches.length; i++) {
+            if(!batches[i].isEmpty())
+                send(i);
+        }
+    }
+
+    /**
+     * Sends all pending batches, then the same request to every worker
+     * @param request the request to send
+     */
+    public void broadcast(Request request) {
+        flush();
+
+        for(int i = 0; i < queues.size(); i++)
+            offer(i, request);
+    }
+
+    /**
+     * Sends all pending batches, then a request to a single worker
+     * @param worker the index of the worker
+     * @param request the request to send
+     */
+    public void sendTo(int worker, Request request) {
+        flush();
+
+        offer(worker, request);
+    }
+
+    private void send(int worker) {
+        BatchRequest batch = batches[worker];
+        batch.setSentNanos(System.nanoTime());
+
+        long blockedNanos = offer(worker, batch);
+        computeController.recordLoad(worker, batch.size());
+        metrics.recordSend(batch.size(), blockedNanos);
+
+        // The batch now belongs to the worker
+        batches[worker] = new BatchRequest(batchSize);
+    }
+
+    /**
+     * Adds a request to the queue towards a worker, waiting while the queue is full
+     * @param worker the index of the worker
+     * @param request the request to add
+     * @return the time spent waiting in nanoseconds, 0 if the queue was not full
+     * @throws IllegalStateException if the worker stopped while the queue is full, since it will never be emptied
+     */
+    private long offer(int worker, Request request) {
+        SpscRingBuffer<Request> queue = queues.get(worker);
+
+        // Only a full queue is timed, the common case costs nothing
+        if(queue.offer(request)) {
+            workers.get(worker).wakeUp();
+            return 0;
+        }
+
+        long waitStart = System.nanoTime();
+
+        // Back off progressively while the worker is behind
+        for(int tries = 0; !queue.offer(request); tries++) {
+            if(workers.get(worker).isTerminated())
+                throw new IllegalStateException("Computing thread " + worker + " stopped");
+
+            workers.get(worker).wakeUp();
+
+            if(tries < SPIN_TRIES)
+                Thread.onSpinWait();
+            else if(tries < SPIN_TRIES + YIELD_TRIES)
+                Thread.yield();
+            else
+                LockSupport.parkNanos(PARK_NANOS);
+        }
+
+        workers.get(worker).wakeUp();
+
+        return Math.max(1, System.nanoTime() - waitStart);
+    }
+}
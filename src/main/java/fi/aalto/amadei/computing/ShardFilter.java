@@ -0,0 +1,54 @@
+package fi.aalto.amadei.computing;
+
+/**
+ * Keeps the requests of the users owned by one of several shards, each run by its own process.
+ * Hash codes of users are mixed and split into ranges of equal size, one for every shard, so that every user belongs
+ * to exactly one shard and the states of different shards never overlap. Ranges are taken from the high bits of the
+ * mixed hash, while workers inside a shard are chosen from its low bits, so that every worker of a shard still gets
+ * its share of the users.
+ */
+public class ShardFilter {
+
+    private final int index;
+    private final int count;
+
+    /**
+     * @param index the index of the shard, from 0 to count - 1
+     * @param count the number of shards
+     */
+    public ShardFilter(int index, int count) {
+        if(count <= 0 || index < 0 || index >= count)
+            throw new IllegalArgumentException("Invalid shard " + index + " of " + count);
+
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * Computes the shard in charge of a user
+     * @param user the user
+     * @param count the number of shards
+     * @return the index of the shard
+     */
+    public static int shardOf(String user, int count) {
+        long hash = Integer.toUnsignedLong(Partitioner.mix(user.hashCode()));
+
+        return (int) ((hash * count) >>> 32);
+    }
+
+    /**
+     * @param user the user
+     * @return true if the user belongs to this shard
+     */
+    public boolean owns(String user) {
+        return count == 1 || shardOf(user, count) == index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+}
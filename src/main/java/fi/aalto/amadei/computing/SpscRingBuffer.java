@@ -0,0 +1,105 @@
+package fi.aalto.amadei.computing;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread at a time.
+ * Head and tail only ever grow and are published with ordered writes, so neither side ever needs a lock or a CAS.
+ * Each side also caches the last seen position of the other one, which avoids touching the other side's cache line
+ * unless the queue looks full (producer) or empty (consumer).
+ * @param <E> the type of the elements
+ */
+public class SpscRingBuffer<E> {
+
+    private final Object[] buffer;
+    private final int mask;
+
+    // Next position to read, written only by the consumer
+    private final AtomicLong head = new AtomicLong();
+
+    // Next position to write, written only by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    // Last value of head seen by the producer
+    private long cachedHead;
+
+    // Last value of tail seen by the consumer
+    private long cachedTail;
+
+    /**
+     * Creates a new ring buffer
+     * @param capacity the minimum number of elements the buffer can hold, rounded up to the next power of two
+     */
+    public SpscRingBuffer(int capacity) {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity)
+            size <<= 1;
+
+        this.buffer = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Adds an element to the queue. To be called by the producer only.
+     * @param element the element to add
+     * @return true if the element was added, false if the queue is full
+     */
+    public boolean offer(E element) {
+        long currentTail = tail.getPlain();
+
+        if(currentTail - cachedHead >= buffer.length) {
+            cachedHead = head.get();
+
+            if(currentTail - cachedHead >= buffer.length)
+                return false;
+        }
+
+        buffer[(int) currentTail & mask] = element;
+        tail.lazySet(currentTail + 1);
+
+        return true;
+    }
+
+    /**
+     * Removes the first element of the queue. To be called by the consumer only.
+     * @return the removed element, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long currentHead = head.getPlain();
+
+        if(currentHead >= cachedTail) {
+            cachedTail = tail.get();
+
+            if(currentHead >= cachedTail)
+                return null;
+        }
+
+        int index = (int) currentHead & mask;
+        E element = (E) buffer[index];
+
+        buffer[index] = null;
+        head.lazySet(currentHead + 1);
+
+        return element;
+    }
+
+    /**
+     * Returns the number of elements in the queue. Only an estimate while the queue is being used.
+     * @return the number of elements in the queue
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+}
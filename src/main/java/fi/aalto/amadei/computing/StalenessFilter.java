@@ -0,0 +1,185 @@
+package fi.aalto.amadei.computing;
+
+import fi.aalto.amadei.beans.UpdateRequest;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drops updates that are already known to be stale before they are sent to the workers.
+ * Keeps the most recent timestamp seen for every user and key in a fixed-size table shared by all parsing threads.
+ * The table is lossy: every (user, key) pair is identified by a 64-bit fingerprint and owns a single slot, which is
+ * taken over by any other pair landing on it. Forgetting a pair only means its next updates are not filtered.
+ * An update is only dropped if an update of the same key with the same or a more recent timestamp has already been
+ * sent: the worker would have ignored it anyway, since the stored value is only replaced by a strictly more recent one.
+ * Slots hold immutable entries replaced with compare-and-set, so readers never take a lock and never see a fingerprint
+ * with the timestamp of another one.
+ */
+public class StalenessFilter {
+
+    private final AtomicReferenceArray<Entry> table;
+    private final int mask;
+
+    private final LongAdder records;
+    private final LongAdder droppedRecords;
+    private final LongAdder values;
+    private final LongAdder droppedValues;
+
+    /**
+     * @param capacity the number of slots of the table, rounded up to a power of two
+     */
+    public StalenessFilter(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+
+        this.records = new LongAdder();
+        this.droppedRecords = new LongAdder();
+        this.values = new LongAdder();
+        this.droppedValues = new LongAdder();
+    }
+
+    /**
+     * Removes the stale values of a request
+     * @param request the request
+     * @return the request itself if none of its values is stale, a new request with only the values that are not
+     * stale, or null if they all are
+     */
+    public UpdateRequest filter(UpdateRequest request) {
+        Map<String, String> requestValues = request.getValues();
+        if(requestValues == null || requestValues.isEmpty())
+            return request;
+
+        long userHash = hash(request.getUser());
+        long timestamp = request.getTimestamp();
+
+        Map<String, String> fresh = null;
+        int checked = 0;
+        int stale = 0;
+
+        for(Map.Entry<String, String> entry : requestValues.entrySet()) {
+            if(advance(fingerprint(userHash, entry.getKey()), timestamp)) {
+                if(fresh != null)
+                    fresh.put(entry.getKey(), entry.getValue());
+            } else if(stale++ == 0) {
+                // First stale value: copy the fresh ones checked so far
+                fresh = new HashMap<>();
+
+                int copied = 0;
+                for(Map.Entry<String, String> previous : requestValues.entrySet()) {
+                    if(copied++ == checked)
+                        break;
+
+                    fresh.put(previous.getKey(), previous.getValue());
+                }
+            }
+
+            checked++;
+        }
+
+        records.increment();
+        values.add(requestValues.size());
+
+        if(stale == 0)
+            return request;
+
+        droppedValues.add(stale);
+
+        if(fresh.isEmpty()) {
+            droppedRecords.increment();
+            return null;
+        }
+
+        return new UpdateRequest(request.getUser(), timestamp, fresh);
+    }
+
+    /**
+     * Records an update of a key, unless a more recent one has already been seen
+     * @param fingerprint the fingerprint of the user and key
+     * @param timestamp the timestamp of the update
+     * @return true if the update is not stale, false otherwise
+     */
+    private boolean advance(long fingerprint, long timestamp) {
+        int index = (int) fingerprint & mask;
+        Entry replacement = null;
+
+        while(true) {
+            Entry current = table.get(index);
+
+            if(current != null && current.fingerprint == fingerprint && current.timestamp >= timestamp)
+                return false;
+
+            if(replacement == null)
+                replacement = new Entry(fingerprint, timestamp);
+
+            if(table.compareAndSet(index, current, replacement))
+                return true;
+        }
+    }
+
+    private static long fingerprint(long userHash, String key) {
+        long hash = userHash * 0x9E3779B97F4A7C15L + hash(key);
+
+        // Finalizer of MurmurHash3, so that the low bits used as index depend on every bit of the hash
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+    // 64-bit FNV-1a over the chars of a String
+    private static long hash(String string) {
+        long hash = 0xcbf29ce484222325L;
+
+        for(int i = 0; i < string.length(); i++) {
+            hash ^= string.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    /**
+     * @return the number of requests checked
+     */
+    public long getRecords() {
+        return records.sum();
+    }
+
+    /**
+     * @return the number of requests dropped because all of their values were stale
+     */
+    public long getDroppedRecords() {
+        return droppedRecords.sum();
+    }
+
+    /**
+     * @return the number of values checked
+     */
+    public long getValues() {
+        return values.sum();
+    }
+
+    /**
+     * @return the number of stale values dropped, including those of dropped requests
+     */
+    public long getDroppedValues() {
+        return droppedValues.sum();
+    }
+
+    private static final class Entry {
+        private final long fingerprint;
+        private final long timestamp;
+
+        private Entry(long fingerprint, long timestamp) {
+            this.fingerprint = fingerprint;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package fi.aalto.amadei.computing;
+
+import fi.aalto.amadei.io.JsonObjectOutput;
+import fi.aalto.amadei.io.JsonStateWriter;
+import fi.aalto.amadei.metrics.PipelineMetrics;
+import fi.aalto.amadei.model.StateImporter;
+import fi.aalto.amadei.model.StateStorage;
+import fi.aalto.amadei.model.StorageType;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes the partial states of all workers as a single JSON object.
+ * Since every user belongs to a single worker, partial states don't need to be merged: every worker serializes its
+ * own one in parallel with the others, and the fragments are concatenated into the JSON object.
+ * Users split by key are the only exception: their partial states are merged, and written once every worker is done.
+ * The object is closed once every worker is collected, even if some of them could not be written, so that the output
+ * stays well-formed for whatever is written after it; the collector then reports the result as incomplete.
+ */
+public class StateCollector {
+
+    private final JsonObjectOutput output;
+    private final Partitioner partitioner;
+    private final StorageType storageType;
+    private final PipelineMetrics metrics;
+
+    private final AtomicInteger remaining;
+    private final CountDownLatch done;
+    private volatile boolean incomplete;
+
+    // State of the users split by key, merged from every worker. A lock rather than a monitor, so that a virtual
+    // thread waiting for it does not pin its carrier thread.
+    private final ReentrantLock splitUsersLock = new ReentrantLock();
+    private StateStorage splitUsersState;
+
+    StateCollector(JsonObjectOutput output, Partitioner partitioner, StorageType storageType, PipelineMetrics metrics,
+                   int nWorkers) {
+        this.output = output;
+        this.partitioner = partitioner;
+        this.storageType = storageType;
+        this.metrics = metrics;
+
+        this.remaining = new AtomicInteger(nWorkers);
+        this.done = new CountDownLatch(1);
+    }
+
+    /**
+     * Writes the partial state of a worker. Must be called exactly once by every worker.
+     * The partial state must not be changed while it is being written.
+     * @param partialStateStorage the state storage of a worker
+     */
+    public void collect(StateStorage partialStateStorage) {
+        long start = System.nanoTime();
+
+        try {
+            // The set of split users cannot change while workers are collected
+            Set<String> splitUsers = partitioner.splitUsers();
+
+            if(splitUsers.isEmpty()) {
+                new JsonStateWriter(output.fragmentChannel()).writeUsers(partialStateStorage);
+            } else {
+                long mergeStart = System.nanoTime();
+                mergeSplitUsers(partialStateStorage, splitUsers);
+                metrics.recordSplitMerge(System.nanoTime() - mergeStart);
+
+                new JsonStateWriter(output.fragmentChannel()).writeUsers(partialStateStorage,
+                        user -> !splitUsers.contains(user));
+            }
+
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        } finally {
+            workerDone();
+            metrics.recordSerialize(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Gives up the partial state of a worker that stopped before it could be collected. Must be called instead of
+     * collect(), at most once by every worker.
+     */
+    public void giveUp() {
+        incomplete = true;
+        workerDone();
+    }
+
+    private void workerDone() {
+        // If every worker is done closes the result
+        if(remaining.decrementAndGet() == 0) {
+            end();
+            done.countDown();
+        }
+    }
+
+    /**
+     * Writes the split users, if any, and closes the object
+     */
+    private void end() {
+        try {
+            if(splitUsersState != null)
+                new JsonStateWriter(output.fragmentChannel()).writeUsers(splitUsersState);
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        }
+
+        try {
+            output.end();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Exception e) {
+        System.err.println("Unable to write the result: " + e.getMessage());
+        incomplete = true;
+    }
+
+    /**
+     * @return true if the state of a worker, or part of it, could not be written. Only meaningful once await() returned.
+     */
+    public boolean isIncomplete() {
+        return incomplete;
+    }
+
+    /**
+     * Waits until the partial state of every worker has been written
+     */
+    public void await() throws InterruptedException {
+        done.await();
+    }
+
+    /**
+     * Copies the state of the split users of a worker into the state shared by every worker. Since only the most recent
+     * value of every key is kept, the order in which workers are merged does not matter.
+     * @param partialStateStorage the state storage of a worker
+     * @param splitUsers the users split by key
+     */
+    private void mergeSplitUsers(StateStorage partialStateStorage, Set<String> splitUsers) {
+        splitUsersLock.lock();
+
+        try {
+            if(splitUsersState == null)
+                splitUsersState = storageType.create();
+
+            partialStateStorage.accept(new StateImporter(splitUsersState, splitUsers::contains));
+        } finally {
+            splitUsersLock.unlock();
+        }
+    }
+}
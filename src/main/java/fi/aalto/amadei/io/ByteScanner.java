@@ -0,0 +1,40 @@
+package fi.aalto.amadei.io;
+
+/**
+ * Finds bytes in an array several bytes at a time: newlines delimiting lines and chunks, and the quotes and
+ * backslashes ending the strings of a line.
+ * Implementations are stateless and thread safe.
+ */
+public interface ByteScanner {
+
+    /**
+     * Finds the first occurrence of a byte in a range
+     * @param data the array
+     * @param from the index of the first byte to check
+     * @param to the index after the last byte to check
+     * @param b the byte to find
+     * @return the index of the first occurrence, or -1 if there is none
+     */
+    int indexOf(byte[] data, int from, int to, byte b);
+
+    /**
+     * Finds the first occurrence of either of two bytes in a range
+     * @param data the array
+     * @param from the index of the first byte to check
+     * @param to the index after the last byte to check
+     * @param a the first byte to find
+     * @param b the second byte to find
+     * @return the index of the first occurrence of a or b, or -1 if there is none
+     */
+    int indexOfEither(byte[] data, int from, int to, byte a, byte b);
+
+    /**
+     * Finds the last occurrence of a byte in a range
+     * @param data the array
+     * @param from the index of the first byte to check
+     * @param to the index after the last byte to check
+     * @param b the byte to find
+     * @return the index of the last occurrence, or -1 if there is none
+     */
+    int lastIndexOf(byte[] data, int from, int to, byte b);
+}
@@ -4,31 +4,92 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import fi.aalto.amadei.beans.UpdateRequest;
 import fi.aalto.amadei.computing.ComputeController;
+import fi.aalto.amadei.computing.RequestDispatcher;
+import fi.aalto.amadei.metrics.PipelineMetrics;
+import fi.aalto.amadei.model.StringDictionary;
+import fi.aalto.amadei.utils.Constants;
+import fi.aalto.amadei.utils.Instances;
 
-import java.io.BufferedReader;
-import java.io.StringReader;
-import java.nio.ByteBuffer;
+import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Reads and parse a chunk of the input file. Spawned by the ParallelFileReader
+ * The chunk is streamed through fixed-size blocks, so memory usage does not depend on the size of the chunk. The next
+ * blocks are read ahead while the current one is parsed, and lines crossing the end of a block are carried over to the
+ * next one.
+ * A chunk can also be a block already in memory, such as a block of lines of a decompressed file.
  */
 public class ChunkReader implements Runnable {
 
     private final long startingBytePosition;
     private final long chunkLength;
     private final FileChannel fileChannel;
+    private final byte[] block;
+    private final ParsingMode parsingMode;
+    private final int bufferSize;
+    private final int prefetchDepth;
 
     private final Gson gson = new GsonBuilder().create();
+    private final FastRequestParser fastParser;
+    private final ByteScanner scanner = Instances.scanner();
 
+    // Counted locally and added to the metrics once the chunk is done
+    private long lines;
+    private long fallbackLines;
+
+    // Position in the file of the line being parsed, or of the next one once a line is parsed
+    private long linePosition;
+
+    private volatile IOException failure;
 
     private final ComputeController computeController;
 
-    public ChunkReader(long startingBytePosition, long chunkLength, FileChannel channel, ComputeController computeController) {
+    public ChunkReader(long startingBytePosition, long chunkLength, FileChannel channel, ParsingMode parsingMode,
+                       int bufferSize, ComputeController computeController) {
+        this(startingBytePosition, chunkLength, channel, parsingMode, bufferSize, Constants.DEFAULT_PREFETCH_DEPTH,
+                computeController);
+    }
+
+    /**
+     * @param bufferSize the size of the blocks the chunk is read in
+     * @param prefetchDepth the number of blocks read ahead while parsing, 0 to only read a block once it is needed
+     */
+    public ChunkReader(long startingBytePosition, long chunkLength, FileChannel channel, ParsingMode parsingMode,
+                       int bufferSize, int prefetchDepth, ComputeController computeController) {
         this.startingBytePosition = startingBytePosition;
         this.chunkLength = chunkLength;
         this.fileChannel = channel;
+        this.block = null;
+        this.parsingMode = parsingMode;
+        this.bufferSize = bufferSize;
+        this.prefetchDepth = prefetchDepth;
+
+        this.fastParser = new FastRequestParser(Instances.dictionary());
+
+        this.computeController = computeController;
+    }
+
+    /**
+     * @param startingBytePosition the position of the block in the (uncompressed) input, used in error messages
+     * @param block the array containing the lines to parse, from its first byte
+     * @param blockLength the number of bytes of the block
+     */
+    public ChunkReader(long startingBytePosition, byte[] block, int blockLength, ParsingMode parsingMode,
+                       ComputeController computeController) {
+        this.startingBytePosition = startingBytePosition;
+        this.chunkLength = blockLength;
+        this.fileChannel = null;
+        this.block = block;
+        this.parsingMode = parsingMode;
+        this.bufferSize = blockLength;
+        this.prefetchDepth = 0;
+
+        this.fastParser = new FastRequestParser(Instances.dictionary());
 
         this.computeController = computeController;
     }
@@ -41,31 +102,206 @@ public class ChunkReader implements Runnable {
         return chunkLength;
     }
 
+    /**
+     * @return the error that stopped the chunk from being read entirely, or null if it was read without errors
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
     @Override
     public void run() {
+        PipelineMetrics metrics = computeController.getMetrics();
+        RequestDispatcher dispatcher = computeController.acquireDispatcher();
+
+        long start = System.nanoTime();
+        lines = 0;
+        fallbackLines = 0;
+        linePosition = startingBytePosition;
+
         try {
-            // Allocate memory
-            ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(chunkLength));
+            if(block != null)
+                readBlock(dispatcher);
+            else
+                readChannel(dispatcher);
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            // The rest of the chunk is not read: the error must reach whoever waits for the chunk
+            failure = new IOException("Unable to read the line at byte " + linePosition + ": " + e.getMessage(), e);
+        } finally {
+            computeController.releaseDispatcher(dispatcher);
 
-            // Read file chunk to RAM
-            fileChannel.read(buffer, startingBytePosition);
+            // Only the lines before a failure were read
+            long bytes = failure == null ? chunkLength : linePosition - startingBytePosition;
+            metrics.recordChunk(bytes, lines, fallbackLines, System.nanoTime() - start);
+        }
+    }
+
+    private void readBlock(RequestDispatcher dispatcher) {
+        int lineStart = parseLines(block, 0, (int) chunkLength, startingBytePosition, dispatcher);
+
+        // Last line of the block, if not terminated by a newline
+        linePosition = startingBytePosition + lineStart;
+        parseLine(block, lineStart, (int) chunkLength, dispatcher);
+    }
+
+    private void readChannel(RequestDispatcher dispatcher) throws IOException {
+        // Blocks are read ahead while the previous ones are parsed. Their size does not depend on the size of the chunk.
+        ReadAhead readAhead = new ReadAhead(fileChannel, startingBytePosition, chunkLength, bufferSize, prefetchDepth,
+                computeController.getThreadingMode());
 
-            // Convert all bytes to a single String
-            String stringChunk = new String(buffer.array(), StandardCharsets.UTF_8);
+        // Line started by a previous block and not finished yet
+        byte[] carry = new byte[0];
+        int carryLength = 0;
+        long carryPosition = startingBytePosition;
+
+        try {
+            ReadAhead.Block block;
 
-            // Read chunk line by line
-            String line;
-            try (BufferedReader reader = new BufferedReader(new StringReader(stringChunk))) {
-                while ((line = reader.readLine()) != null) {
-                    UpdateRequest request = gson.fromJson(line, UpdateRequest.class);
+            while((block = readAhead.next()) != null) {
+                byte[] data = block.buffer().array();
+                int length = block.buffer().position();
+                int lineStart = 0;
 
-                    computeController.sendRequestToWorker(request);
+                // Complete the line started by the previous blocks, if any
+                if(carryLength > 0) {
+                    int newline = scanner.indexOf(data, 0, length, (byte) '\n');
+                    int end = newline >= 0 ? newline : length;
+
+                    if(carryLength + end > carry.length)
+                        carry = Arrays.copyOf(carry, Math.max(carry.length * 2, carryLength + end));
+
+                    System.arraycopy(data, 0, carry, carryLength, end);
+                    carryLength += end;
+
+                    if(newline < 0) {
+                        readAhead.release(block);
+                        continue;
+                    }
+
+                    linePosition = carryPosition;
+                    parseLine(carry, 0, carryLength, dispatcher);
+                    linePosition = block.position() + newline + 1;
+
+                    carryLength = 0;
+                    lineStart = newline + 1;
                 }
+
+                // Parse all complete lines in the block
+                lineStart = parseLines(data, lineStart, length, block.position(), dispatcher);
+
+                // Keep the incomplete last line, so that it can be completed by the next block
+                int leftover = length - lineStart;
+                if(leftover > carry.length)
+                    carry = new byte[leftover];
+
+                System.arraycopy(data, lineStart, carry, 0, leftover);
+                carryLength = leftover;
+                carryPosition = block.position() + lineStart;
+
+                readAhead.release(block);
             }
+        } finally {
+            readAhead.close();
+            computeController.getMetrics().recordReadWait(readAhead.getWaitNanos());
+        }
+
+        // Last line of the chunk, if not terminated by a newline
+        linePosition = carryPosition;
+        parseLine(carry, 0, carryLength, dispatcher);
+    }
 
-            computeController.parsingDone();
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Parses every complete line of a block
+     * @param data the block
+     * @param lineStart the index of the first byte of the first line
+     * @param length the number of bytes of the block
+     * @param windowPosition the position in the input of the first byte of the block
+     * @param dispatcher the dispatcher used to send the requests
+     * @return the index of the first byte of the incomplete last line
+     */
+    private int parseLines(byte[] data, int lineStart, int length, long windowPosition, RequestDispatcher dispatcher) {
+        for(int i = scanner.indexOf(data, lineStart, length, (byte) '\n'); i >= 0;
+            i = scanner.indexOf(data, i + 1, length, (byte) '\n')) {
+            linePosition = windowPosition + lineStart;
+            parseLine(data, lineStart, i, dispatcher);
+            lineStart = i + 1;
+            linePosition = windowPosition + lineStart;
         }
+
+        return lineStart;
+    }
+
+    /**
+     * Parses a single line and sends the resulting request to the compute workers. Blank lines are ignored, a line
+     * that cannot be parsed is accounted as a parse error before the error is thrown.
+     * @param data the array containing the line
+     * @param start the index of the first byte of the line
+     * @param end the index after the last byte of the line
+     * @param dispatcher the dispatcher used to send the request
+     */
+    private void parseLine(byte[] data, int start, int end, RequestDispatcher dispatcher) {
+        // Ignore the carriage return of Windows line endings
+        if(end > start && data[end - 1] == '\r')
+            end--;
+
+        if(isBlank(data, start, end))
+            return;
+
+        UpdateRequest request = null;
+
+        try {
+            if(parsingMode == ParsingMode.FAST)
+                request = fastParser.parse(data, start, end);
+
+            // Either GSON was requested or the line was too unusual for the fast parser
+            if(request == null) {
+                request = intern(gson.fromJson(new String(data, start, end - start, StandardCharsets.UTF_8),
+                        UpdateRequest.class));
+
+                // The fast parser never accepts such lines, they would make the computing thread fail
+                if(request.getUser() == null || request.getValues() == null)
+                    throw new IllegalArgumentException("Missing user or values");
+
+                fallbackLines++;
+            }
+        } catch (RuntimeException e) {
+            computeController.getMetrics().recordParseError();
+            throw e;
+        }
+
+        lines++;
+        dispatcher.dispatch(request);
+    }
+
+    /**
+     * Replaces the keys of a request parsed by GSON with their canonical instances, like the fast parser does
+     * @param request the request
+     * @return an equivalent request
+     */
+    private static UpdateRequest intern(UpdateRequest request) {
+        StringDictionary dictionary = Instances.dictionary();
+        Map<String, String> values = request.getValues();
+
+        if(values != null) {
+            Map<String, String> interned = new HashMap<>(values.size() * 2);
+
+            for(Map.Entry<String, String> entry : values.entrySet())
+                interned.put(dictionary.intern(entry.getKey()), entry.getValue());
+
+            values = interned;
+        }
+
+        return new UpdateRequest(request.getUser(), request.getTimestamp(), values);
+    }
+
+    private static boolean isBlank(byte[] data, int start, int end) {
+        for(int i = start; i < end; i++) {
+            if(data[i] != ' ' && data[i] != '\t' && data[i] != '\r')
+                return false;
+        }
+
+        return true;
     }
 }
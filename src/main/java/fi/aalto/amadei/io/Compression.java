@@ -0,0 +1,95 @@
+package fi.aalto.amadei.io;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compression formats of the input files, recognized from their first bytes rather than from their names
+ */
+public enum Compression {
+
+    NONE(new byte[0]),
+
+    /**
+     * gzip, including files made of several concatenated gzip members
+     */
+    GZIP(new byte[] {0x1f, (byte) 0x8b}),
+
+    /**
+     * Zstandard, including files made of several concatenated frames
+     */
+    ZSTD(new byte[] {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd});
+
+    // Size of the buffer between the file and the decompressor
+    private static final int STREAM_BUFFER_SIZE = 256 * 1024;
+
+    private final byte[] magic;
+
+    Compression(byte[] magic) {
+        this.magic = magic;
+    }
+
+    /**
+     * Finds the compression format of a file
+     * @param file the file
+     * @return the compression format, NONE if the file is not compressed
+     */
+    public static Compression of(File file) throws IOException {
+        byte[] header = new byte[4];
+        int length;
+
+        try(InputStream in = new FileInputStream(file)) {
+            length = in.readNBytes(header, 0, header.length);
+        }
+
+        for(Compression compression : values()) {
+            if(compression != NONE && startsWith(header, length, compression.magic))
+                return compression;
+        }
+
+        return NONE;
+    }
+
+    private static boolean startsWith(byte[] header, int length, byte[] magic) {
+        if(length < magic.length)
+            return false;
+
+        for(int i = 0; i < magic.length; i++) {
+            if(header[i] != magic[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Opens a file of this format for reading
+     * @param file the file
+     * @return a stream of the uncompressed content of the file
+     */
+    public InputStream open(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), STREAM_BUFFER_SIZE);
+
+        try {
+            return switch(this) {
+                case NONE -> in;
+                case GZIP -> new GZIPInputStream(in, STREAM_BUFFER_SIZE);
+                case ZSTD -> new ZstdInputStream(in);
+            };
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a file, decompressing it if needed
+     * @param file the file
+     * @return a stream of the uncompressed content of the file
+     */
+    public static InputStream openAny(File file) throws IOException {
+        return of(file).open(file);
+    }
+}
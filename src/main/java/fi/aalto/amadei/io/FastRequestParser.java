@@ -0,0 +1,222 @@
+package fi.aalto.amadei.io;
+
+import fi.aalto.amadei.beans.UpdateRequest;
+import fi.aalto.amadei.model.StringDictionary;
+import fi.aalto.amadei.utils.Instances;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Special-purpose parser for the {"user", "timestamp", "values"} schema of the input file.
+ * Works directly on the raw UTF-8 bytes of a line, without decoding the whole line into a String and without any
+ * reflection. Only the subset of JSON that is actually produced by the request log is supported: plain strings (no
+ * escape sequences), integer timestamps and string values. Whenever something unexpected is found the parser gives
+ * up and returns null, so that the caller can fall back to GSON, which is way slower but handles every valid line.
+ * Keys are interned in a StringDictionary, so that no String is created for the ones already seen. Users are not: there
+ * are far more of them than keys and the dictionary never forgets a String, so a new String is created for every user.
+ * Not thread safe: every ChunkReader should own its instance.
+ */
+public class FastRequestParser {
+
+    private static final byte[] USER = "user".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIMESTAMP = "timestamp".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VALUES = "values".getBytes(StandardCharsets.US_ASCII);
+
+    // Longest number of digits that can never overflow a long
+    private static final int MAX_TIMESTAMP_DIGITS = 18;
+
+    private byte[] data;
+    private int pos;
+    private int end;
+
+    // Bounds of the last string read by readString()
+    private int stringStart;
+    private int stringEnd;
+
+    // Value of the last timestamp read by readTimestamp()
+    private long lastTimestamp;
+
+    private final StringDictionary dictionary;
+    private final ByteScanner scanner = Instances.scanner();
+
+    public FastRequestParser() {
+        this(Instances.dictionary());
+    }
+
+    /**
+     * @param dictionary the dictionary to intern keys in
+     */
+    public FastRequestParser(StringDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Parses a single line
+     * @param data the array containing the line
+     * @param start the index of the first byte of the line
+     * @param end the index after the last byte of the line (excluding the newline)
+     * @return the parsed request, or null if the line could not be parsed and should be handed to GSON
+     */
+    public UpdateRequest parse(byte[] data, int start, int end) {
+        this.data = data;
+        this.pos = start;
+        this.end = end;
+
+        String user = null;
+        long timestamp = 0;
+        boolean hasTimestamp = false;
+        Map<String, String> values = null;
+
+        if(!consume('{'))
+            return null;
+
+        do {
+            if(!readString() || !consume(':'))
+                return null;
+
+            if(matches(USER)) {
+                if(user != null || !readString())
+                    return null;
+
+                user = new String(data, stringStart, stringEnd - stringStart, StandardCharsets.UTF_8);
+            } else if(matches(TIMESTAMP)) {
+                if(hasTimestamp || !readTimestamp())
+                    return null;
+
+                timestamp = lastTimestamp;
+                hasTimestamp = true;
+            } else if(matches(VALUES)) {
+                if(values != null || (values = readValues()) == null)
+                    return null;
+            } else {
+                // Unknown field, let GSON decide what to do with it
+                return null;
+            }
+        } while(consume(','));
+
+        if(!consume('}') || user == null || !hasTimestamp || values == null)
+            return null;
+
+        // Nothing but whitespace is allowed after the object
+        skipWhitespace();
+        if(pos != end)
+            return null;
+
+        return new UpdateRequest(user, timestamp, values);
+    }
+
+    private boolean readTimestamp() {
+        skipWhitespace();
+
+        boolean negative = false;
+        if(pos < end && data[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+
+        int digitsStart = pos;
+        long value = 0;
+
+        while(pos < end && data[pos] >= '0' && data[pos] <= '9') {
+            value = value * 10 + (data[pos] - '0');
+            pos++;
+        }
+
+        int digits = pos - digitsStart;
+        if(digits == 0 || digits > MAX_TIMESTAMP_DIGITS)
+            return false;
+
+        // Fractions and exponents are left to GSON
+        if(pos < end && (data[pos] == '.' || data[pos] == 'e' || data[pos] == 'E'))
+            return false;
+
+        lastTimestamp = negative ? -value : value;
+        return true;
+    }
+
+    private Map<String, String> readValues() {
+        if(!consume('{'))
+            return null;
+
+        Map<String, String> values = new HashMap<>();
+
+        // Empty object
+        skipWhitespace();
+        if(pos < end && data[pos] == '}') {
+            pos++;
+            return values;
+        }
+
+        do {
+            if(!readString() || !consume(':'))
+                return null;
+
+            String key = dictionary.intern(data, stringStart, stringEnd);
+
+            if(!readString())
+                return null;
+
+            String value = new String(data, stringStart, stringEnd - stringStart, StandardCharsets.UTF_8);
+
+            // GSON refuses duplicate keys, make sure it gets the chance to do so
+            if(values.put(key, value) != null)
+                return null;
+        } while(consume(','));
+
+        if(!consume('}'))
+            return null;
+
+        return values;
+    }
+
+    /**
+     * Reads a string, storing its bounds (without quotes) in stringStart and stringEnd
+     * @return true if a string without escape sequences was read, false otherwise
+     */
+    private boolean readString() {
+        if(!consume('"'))
+            return false;
+
+        stringStart = pos;
+
+        int found = scanner.indexOfEither(data, pos, end, (byte) '"', (byte) '\\');
+
+        // Escape sequences are rare, GSON can deal with them
+        if(found < 0 || data[found] == '\\')
+            return false;
+
+        stringEnd = found;
+        pos = found + 1;
+        return true;
+    }
+
+    private boolean matches(byte[] expected) {
+        if(stringEnd - stringStart != expected.length)
+            return false;
+
+        for(int i = 0; i < expected.length; i++) {
+            if(data[stringStart + i] != expected[i])
+                return false;
+        }
+
+        return true;
+    }
+
+    private boolean consume(char c) {
+        skipWhitespace();
+
+        if(pos < end && data[pos] == c) {
+            pos++;
+            return true;
+        }
+
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while(pos < end && (data[pos] == ' ' || data[pos] == '\t' || data[pos] == '\r'))
+            pos++;
+    }
+}
@@ -0,0 +1,379 @@
+package fi.aalto.amadei.io;
+
+import fi.aalto.amadei.computing.ComputeController;
+import fi.aalto.amadei.utils.Instances;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * Follows an append-only input file, or a directory of rolled input files, applying new lines as they are written.
+ * The existing content is first read in parallel like in a normal run, and a snapshot of the whole state is written.
+ * Files are then checked periodically: lines appended since the last check are parsed and sent to the workers, and
+ * the changes they made to the state are written as a delta. Only complete lines are read, so that a line being
+ * written is never parsed in two halves.
+ * Snapshots can also be requested at any time. Every snapshot and delta is a single line of output.
+ * Reading can resume from the offsets stored in a binary snapshot, and binary snapshots can be saved on request and
+ * when stopping.
+ * Compressed files, like rolled files compressed after rotation, are never appended to: they are read entirely once.
+ * Every file is read from the beginning again if it is replaced by a different one under the same path, or if it shrinks,
+ * see InputPosition. A file renamed by a rotation is found by its file key: in a directory it keeps being followed under
+ * its new name, and a single input file renamed out of the way is read up to its last complete line before the new
+ * file under its name is followed.
+ */
+public class FileTailer implements Runnable {
+
+    // Size of the blocks read while looking for the last newline of a file
+    private static final int SCAN_BLOCK_SIZE = 64 * 1024;
+
+    private final File input;
+    private final int nThreads;
+    private final ParsingMode parsingMode;
+    private final int bufferSize;
+    private final int prefetchDepth;
+    private final long intervalMillis;
+    private final File snapshotDirectory;
+
+    private final ComputeController computeController;
+
+    // Number of bytes already read from every file, and the file they were read from
+    private final Map<File, InputPosition> offsets;
+    private final Map<String, InputPosition> initialPositions;
+
+    // Size of the compressed files that could not be read, not retried until they change
+    private final Map<File, Long> unreadable;
+
+    private boolean snapshotRequested;
+    private boolean saveRequested;
+    private boolean stopRequested;
+
+    /**
+     * @param initialPositions how far every input file was already applied to the state, by input key
+     * @param prefetchDepth the number of blocks read ahead while parsing
+     * @param snapshotDirectory the directory to save binary snapshots into, or null
+     */
+    public FileTailer(File input, Map<String, InputPosition> initialPositions, int nThreads, ParsingMode parsingMode,
+                      int bufferSize, int prefetchDepth, long intervalMillis, File snapshotDirectory,
+                      ComputeController computeController) {
+        Objects.requireNonNull(input);
+        Objects.requireNonNull(parsingMode);
+
+        this.input = input;
+        this.nThreads = nThreads;
+        this.parsingMode = parsingMode;
+        this.bufferSize = bufferSize;
+        this.prefetchDepth = prefetchDepth;
+        this.intervalMillis = intervalMillis;
+        this.snapshotDirectory = snapshotDirectory;
+
+        this.computeController = computeController;
+
+        this.offsets = new HashMap<>();
+        this.initialPositions = initialPositions;
+        this.unreadable = new HashMap<>();
+    }
+
+    /**
+     * Lists the files to read, in the order they must be read: the input file itself, or the files of the input
+     * directory from the oldest to the most recent
+     * @param input the input file or directory
+     * @return the files to read
+     */
+    public static List<File> inputFiles(File input) {
+        if(!input.isDirectory())
+            return List.of(input);
+
+        File[] files = input.listFiles(File::isFile);
+        if(files == null)
+            return List.of();
+
+        // Rolled files are not modified anymore, so they are older than the one currently written
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified).thenComparing(File::getName));
+
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Asks for a snapshot of the whole state to be written as soon as possible
+     */
+    public synchronized void requestSnapshot() {
+        snapshotRequested = true;
+        notifyAll();
+    }
+
+    /**
+     * Asks for a binary snapshot to be saved as soon as possible
+     */
+    public synchronized void requestSave() {
+        saveRequested = true;
+        notifyAll();
+    }
+
+    /**
+     * Asks to stop following the input. Lines already read are applied, then the final state is written.
+     */
+    public synchronized void stop() {
+        stopRequested = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        try {
+            // Read the existing content in parallel
+            for(File file : inputFiles(input)) {
+                InputPosition position = initialPositions.get(InputPosition.key(file));
+                long start = position != null ? position.resumeOffset(file) : 0;
+
+                long end = Compression.of(file) != Compression.NONE ? file.length() : lastLineEnd(file, start);
+
+                // Taken before reading, so that it is not taken on a new file if the file is renamed meanwhile
+                InputPosition read = InputPosition.of(file, end);
+
+                new ParallelFileReader(file, start, end, nThreads, parsingMode, bufferSize, prefetchDepth,
+                        computeController).read();
+                offsets.put(file, read);
+            }
+
+            computeController.emitSnapshot();
+
+            while(waitForNextCheck()) {
+                if(readNewLines())
+                    computeController.emitDelta();
+
+                if(takeSnapshotRequest())
+                    computeController.emitSnapshot();
+
+                if(takeSaveRequest())
+                    save();
+            }
+
+            save();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Unable to read input: " + e.getMessage());
+        } finally {
+            computeController.parsingDone();
+        }
+    }
+
+    /**
+     * Waits until the next check or until a snapshot or a stop is requested
+     * @return false if a stop was requested, true otherwise
+     */
+    private synchronized boolean waitForNextCheck() throws InterruptedException {
+        if(!snapshotRequested && !saveRequested && !stopRequested)
+            wait(intervalMillis);
+
+        return !stopRequested;
+    }
+
+    private synchronized boolean takeSnapshotRequest() {
+        boolean requested = snapshotRequested;
+        snapshotRequested = false;
+
+        return requested;
+    }
+
+    private synchronized boolean takeSaveRequest() {
+        boolean requested = saveRequested;
+        saveRequested = false;
+
+        return requested;
+    }
+
+    private void save() throws InterruptedException {
+        if(snapshotDirectory == null)
+            return;
+
+        Map<String, InputPosition> inputPositions = new HashMap<>();
+        for(Map.Entry<File, InputPosition> entry : offsets.entrySet())
+            inputPositions.put(InputPosition.key(entry.getKey()), entry.getValue());
+
+        try {
+            computeController.saveSnapshot(snapshotDirectory, inputPositions);
+        } catch (IOException e) {
+            System.err.println("Unable to save snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the lines appended to every file since the last check
+     * @return true if any line was read
+     */
+    private boolean readNewLines() throws IOException {
+        List<File> files = inputFiles(input);
+        boolean read = followRenamedFiles(files);
+
+        for(File file : files) {
+            InputPosition position = offsets.get(file);
+
+            // A different file under the same path, or the file truncated and being written again from the beginning
+            long offset = position != null && position.identifies(file) ? position.getOffset() : 0;
+
+            if(file.length() == offset)
+                continue;
+
+            if(Compression.of(file) != Compression.NONE) {
+                read |= readCompressed(file, offset);
+                continue;
+            }
+
+            long end = lastLineEnd(file, offset);
+            InputPosition next = InputPosition.of(file, end);
+
+            read |= readLines(file, offset, end);
+            offsets.put(file, next);
+        }
+
+        // Forget the files that have been deleted
+        offsets.keySet().retainAll(files);
+        unreadable.keySet().retainAll(files);
+
+        return read;
+    }
+
+    /**
+     * Moves the offset of every file renamed since the last check to its new name, so that the file is neither read
+     * again from the beginning nor loses the lines written before the rename. Renamed files are found by file key
+     * among the input files or, for a single input file, among the files of its directory.
+     * @param files the input files
+     * @return true if any line was read
+     */
+    private boolean followRenamedFiles(List<File> files) throws IOException {
+        Map<File, InputPosition> moved = new HashMap<>();
+        boolean read = false;
+
+        for(Map.Entry<File, InputPosition> entry : offsets.entrySet()) {
+            File file = entry.getKey();
+            InputPosition position = entry.getValue();
+
+            if(position.getFileKey() == null || position.hasSameKey(file)) {
+                moved.put(file, position);
+                continue;
+            }
+
+            File renamed = findRenamed(position, input.isDirectory() ? files : siblings(file));
+
+            // Deleted, or renamed out of the input directory
+            if(renamed == null)
+                continue;
+
+            if(files.contains(renamed)) {
+                moved.put(renamed, position);
+            } else if(Compression.of(renamed) == Compression.NONE) {
+                // Nothing is written to a file renamed out of the way anymore, once the writer moved to the new one
+                read |= readLines(renamed, position.getOffset(), lastLineEnd(renamed, position.getOffset()));
+            }
+        }
+
+        offsets.clear();
+        offsets.putAll(moved);
+
+        return read;
+    }
+
+    private static File findRenamed(InputPosition position, List<File> candidates) throws IOException {
+        for(File candidate : candidates) {
+            if(position.hasSameKey(candidate) && position.identifies(candidate))
+                return candidate;
+        }
+
+        return null;
+    }
+
+    private static List<File> siblings(File file) {
+        File[] files = file.getAbsoluteFile().getParentFile().listFiles(File::isFile);
+
+        return files != null ? Arrays.asList(files) : List.of();
+    }
+
+    /**
+     * Parses the complete lines of a plain file between two positions
+     * @param file the file
+     * @param offset the position of the first byte to read, at the beginning of a line
+     * @param end the position right after the last newline to read
+     * @return true if any line was read
+     */
+    private boolean readLines(File file, long offset, long end) throws IOException {
+        if(end <= offset)
+            return false;
+
+        try(FileChannel channel = new FileInputStream(file).getChannel()) {
+            ChunkReader chunkReader = new ChunkReader(offset, end - offset, channel, parsingMode, bufferSize,
+                    prefetchDepth, computeController);
+            chunkReader.run();
+
+            // The line is lost either way: report it and keep following
+            if(chunkReader.getFailure() != null)
+                System.err.println("Unable to read " + file.getName() + ": " + chunkReader.getFailure().getMessage());
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads a compressed file that appeared since the last check, unless it was already read. The file only counts as
+     * read once it was read entirely: a file still being compressed, e.g. by logrotate, is read again once it changed.
+     * @param file the compressed file
+     * @param offset the offset of the file, 0 if it was not read yet
+     * @return true if the file was read
+     */
+    private boolean readCompressed(File file, long offset) throws IOException {
+        // Taken before reading, so that a file changing while it is read is read again
+        InputPosition position = InputPosition.of(file, file.length());
+        long length = position.getSize();
+
+        if(offset > 0 || unreadable.getOrDefault(file, -1L) == length)
+            return false;
+
+        try {
+            new ParallelFileReader(file, 0, -1, nThreads, parsingMode, bufferSize, prefetchDepth,
+                    computeController).read();
+
+            offsets.put(file, position);
+            unreadable.remove(file);
+        } catch (IOException e) {
+            // Lines already parsed are applied again with the same timestamps when retrying, which changes nothing
+            System.err.println("Unable to read " + e.getMessage() + ", retrying once the file changes");
+            unreadable.put(file, length);
+        }
+
+        return true;
+    }
+
+    /**
+     * Finds the end of the last complete line of a file, reading it backwards one block at a time
+     * @param file the file
+     * @param from the position to stop searching at
+     * @return the position right after the last newline of the file, or from if there is none after it
+     */
+    private static long lastLineEnd(File file, long from) throws IOException {
+        try(FileChannel channel = new FileInputStream(file).getChannel()) {
+            ByteBuffer buffer = ByteBuffer.allocate(SCAN_BLOCK_SIZE);
+            long end = channel.size();
+
+            while(end > from) {
+                long start = Math.max(from, end - SCAN_BLOCK_SIZE);
+
+                buffer.clear();
+                buffer.limit((int) (end - start));
+
+                while(buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) > 0);
+
+                int newline = Instances.scanner().lastIndexOf(buffer.array(), 0, buffer.position(), (byte) '\n');
+                if(newline >= 0)
+                    return start + newline + 1;
+
+                end = start;
+            }
+
+            return from;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package fi.aalto.amadei.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.CRC32;
+
+/**
+ * How far an input file was read, together with what identifies the file, so that the offset is only trusted for the
+ * file it was taken on. A different file under the same path, e.g. after a rotation, is read from the beginning.
+ * Files are identified by their file key (the device and inode on Unix) when the file system has one, and by a
+ * checksum of their first bytes, since file systems reuse the inode of a deleted file for the next one created. Plain
+ * files are only ever appended to, so they must not have shrunk either. Compressed files are never modified, so their
+ * size and modification time must not have changed at all.
+ * Positions are stored by input key, the canonical path of the file, so that files with the same name in different
+ * directories never share a position.
+ */
+public class InputPosition {
+
+    // Number of bytes at the beginning of a file covered by the checksum, at most the offset
+    private static final int HEAD_SIZE = 4096;
+
+    // File key of the file, or null if the file system has none
+    private final String fileKey;
+    private final long size;
+    private final long lastModified;
+    private final long headChecksum;
+
+    private final long offset;
+
+    /**
+     * @param fileKey the file key of the file, or null if unknown
+     * @param size the size of the file when the position was taken
+     * @param lastModified the modification time of the file when the position was taken, in milliseconds
+     * @param headChecksum the CRC32 of the first bytes of the file, up to the offset
+     * @param offset the number of bytes of the file already read
+     */
+    public InputPosition(String fileKey, long size, long lastModified, long headChecksum, long offset) {
+        this.fileKey = fileKey;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.headChecksum = headChecksum;
+        this.offset = offset;
+    }
+
+    /**
+     * Takes the position of a file as it is now
+     * @param file the file
+     * @param offset the number of bytes of the file already read
+     * @return the position
+     */
+    public static InputPosition of(File file, long offset) throws IOException {
+        BasicFileAttributes attributes = attributes(file);
+
+        return new InputPosition(fileKey(attributes), attributes.size(), attributes.lastModifiedTime().toMillis(),
+                headChecksum(file, offset), offset);
+    }
+
+    /**
+     * @param file an input file
+     * @return the key positions of the file are stored by: its canonical path
+     */
+    public static String key(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Checks that a file is still the one the position was taken on, and that the offset can be trusted
+     * @param file the file now found under the path of the position
+     * @return true if reading can resume from the offset, false if the file does not exist anymore
+     */
+    public boolean identifies(File file) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = attributes(file);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+
+        String currentKey = fileKey(attributes);
+
+        if(fileKey != null && currentKey != null && !fileKey.equals(currentKey))
+            return false;
+
+        if(Compression.of(file) != Compression.NONE) {
+            if(attributes.size() != size || attributes.lastModifiedTime().toMillis() != lastModified)
+                return false;
+        } else if(attributes.size() < offset) {
+            return false;
+        }
+
+        return headChecksum(file, offset) == headChecksum;
+    }
+
+    /**
+     * Checks whether a file has the file key of the position, e.g. to find where a file was renamed to
+     * @param file a file
+     * @return true if both file keys are known and equal, false if they are not or the file does not exist anymore
+     */
+    public boolean hasSameKey(File file) throws IOException {
+        if(fileKey == null)
+            return false;
+
+        try {
+            return fileKey.equals(fileKey(attributes(file)));
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param file the file now found under the path of the position
+     * @return the offset to resume reading the file from: the offset of the position if it still identifies the file,
+     * 0 otherwise
+     */
+    public long resumeOffset(File file) throws IOException {
+        return identifies(file) ? offset : 0;
+    }
+
+    private static BasicFileAttributes attributes(File file) throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    }
+
+    /**
+     * Computes the checksum of the first bytes of a file
+     * @param file the file
+     * @param offset the number of bytes of the file read: only bytes before it are covered
+     * @return the CRC32 of the first bytes of the file
+     */
+    private static long headChecksum(File file, long offset) throws IOException {
+        CRC32 crc = new CRC32();
+
+        try(InputStream in = new FileInputStream(file)) {
+            crc.update(in.readNBytes((int) Math.min(offset, HEAD_SIZE)));
+        }
+
+        return crc.getValue();
+    }
+
+    private static String fileKey(BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+
+        return key != null ? key.toString() : null;
+    }
+
+    /**
+     * @return the file key of the file, or null if unknown
+     */
+    public String getFileKey() {
+        return fileKey;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getHeadChecksum() {
+        return headChecksum;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+}
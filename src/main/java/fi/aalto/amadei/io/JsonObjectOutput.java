@@ -0,0 +1,99 @@
+package fi.aalto.amadei.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds a single JSON object on a channel out of fragments written concurrently by several threads.
+ * Every fragment must contain whole members of the object (see JsonStateWriter.writeUsers): fragments are appended
+ * atomically and separated by commas, so they can arrive in any order.
+ * The object can optionally be wrapped in another object, as the value of a single member.
+ */
+public class JsonObjectOutput {
+
+    private final WritableByteChannel channel;
+    private final byte[] opening;
+    private final byte[] closing;
+
+    private boolean started;
+    private boolean empty;
+
+    public JsonObjectOutput(WritableByteChannel channel) {
+        this(channel, null);
+    }
+
+    /**
+     * @param channel the channel to write to
+     * @param name the name of the member of the wrapping object, or null to write the object alone. Must not need
+     *             to be escaped.
+     */
+    public JsonObjectOutput(WritableByteChannel channel, String name) {
+        this.channel = channel;
+        this.opening = (name == null ? "{" : "{\"" + name + "\":{").getBytes(StandardCharsets.UTF_8);
+        this.closing = (name == null ? "}\n" : "}}\n").getBytes(StandardCharsets.UTF_8);
+
+        this.started = false;
+        this.empty = true;
+    }
+
+    /**
+     * Returns a channel whose writes are appended to the object as fragments. Can be used by any number of threads.
+     * @return the channel
+     */
+    public WritableByteChannel fragmentChannel() {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer fragment) throws IOException {
+                return appendFragment(fragment);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    private synchronized int appendFragment(ByteBuffer fragment) throws IOException {
+        int length = fragment.remaining();
+
+        if(length == 0)
+            return 0;
+
+        start();
+
+        if(!empty)
+            writeFully(ByteBuffer.wrap(new byte[] {','}));
+
+        writeFully(fragment);
+        empty = false;
+
+        return length;
+    }
+
+    /**
+     * Closes the JSON object. No fragment can be appended afterwards.
+     */
+    public synchronized void end() throws IOException {
+        start();
+
+        writeFully(ByteBuffer.wrap(closing));
+    }
+
+    private void start() throws IOException {
+        if(!started) {
+            writeFully(ByteBuffer.wrap(opening));
+            started = true;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
@@ -0,0 +1,244 @@
+package fi.aalto.amadei.io;
+
+import fi.aalto.amadei.model.StateStorage;
+import fi.aalto.amadei.model.StateVisitor;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.Predicate;
+
+/**
+ * Serializes a State Storage as JSON while walking through it, writing UTF-8 bytes to a channel through a fixed-size
+ * buffer. Neither the intermediate maps nor the whole JSON String are ever built.
+ * The output is the same as the one of GSON's default configuration: compact, with HTML characters escaped and
+ * null values omitted.
+ * Can either write a whole JSON object (write) or only its members, in fragments made of whole users (writeUsers),
+ * so that several partitions can be serialized in parallel into the same JsonObjectOutput.
+ */
+public class JsonStateWriter implements StateVisitor {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final WritableByteChannel channel;
+    private ByteBuffer buffer;
+
+    private boolean firstUser;
+    private boolean firstValue;
+
+    // If true, the buffer is only flushed between two users
+    private boolean fragments;
+
+    // Users to write, and whether the current user is being skipped
+    private Predicate<String> users;
+    private boolean skipping;
+
+    public JsonStateWriter(WritableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public JsonStateWriter(WritableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * Writes the state of every user as a single JSON object followed by a newline, then flushes
+     * @param stateStorage the state to write
+     */
+    public void write(StateStorage stateStorage) throws IOException {
+        try {
+            put((byte) '{');
+
+            firstUser = true;
+            fragments = false;
+            users = user -> true;
+            stateStorage.accept(this);
+
+            put((byte) '}');
+            put((byte) '\n');
+
+            flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Writes the state of every user as members of a JSON object, without braces, then flushes.
+     * Every write to the channel contains one or more whole users separated by commas, without leading or trailing
+     * commas.
+     * @param stateStorage the state to write
+     */
+    public void writeUsers(StateStorage stateStorage) throws IOException {
+        writeUsers(stateStorage, user -> true);
+    }
+
+    /**
+     * Writes the state of some users as members of a JSON object, like writeUsers(StateStorage)
+     * @param stateStorage the state to write
+     * @param users the users to write
+     */
+    public void writeUsers(StateStorage stateStorage, Predicate<String> users) throws IOException {
+        try {
+            firstUser = true;
+            fragments = true;
+            this.users = users;
+            stateStorage.accept(this);
+
+            flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void beginUser(String user) {
+        skipping = !users.test(user);
+        if(skipping)
+            return;
+
+        if(!firstUser)
+            put((byte) ',');
+
+        writeString(user);
+        put((byte) ':');
+        put((byte) '{');
+
+        firstUser = false;
+        firstValue = true;
+    }
+
+    @Override
+    public void value(String key, long timestamp, String value) {
+        // Like GSON, null values are not written
+        if(value == null || skipping)
+            return;
+
+        if(!firstValue)
+            put((byte) ',');
+
+        writeString(key);
+        put((byte) ':');
+        writeString(value);
+
+        firstValue = false;
+    }
+
+    @Override
+    public void endUser() {
+        if(skipping)
+            return;
+
+        put((byte) '}');
+
+        // Send the fragment once the buffer is half full
+        if(fragments && buffer.position() >= buffer.capacity() / 2) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            firstUser = true;
+        }
+    }
+
+    /**
+     * Writes everything still in the buffer to the channel
+     */
+    public void flush() throws IOException {
+        if(buffer.position() == 0)
+            return;
+
+        buffer.flip();
+
+        while(buffer.hasRemaining())
+            channel.write(buffer);
+
+        buffer.clear();
+    }
+
+    private void writeString(String string) {
+        put((byte) '"');
+
+        for(int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+
+            if(c < 0x80) {
+                writeAscii(c);
+            } else if(c < 0x800) {
+                put((byte) (0xC0 | (c >> 6)));
+                put((byte) (0x80 | (c & 0x3F)));
+            } else if(c == '\u2028' || c == '\u2029') {
+                writeUnicodeEscape(c);
+            } else if(Character.isHighSurrogate(c) && i + 1 < string.length()
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+
+                put((byte) (0xF0 | (codePoint >> 18)));
+                put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if(Character.isSurrogate(c)) {
+                // Unpaired surrogate, which cannot be encoded in UTF-8
+                put((byte) '?');
+            } else {
+                put((byte) (0xE0 | (c >> 12)));
+                put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+
+        put((byte) '"');
+    }
+
+    private void writeAscii(char c) {
+        switch(c) {
+            case '"' -> { put((byte) '\\'); put((byte) '"'); }
+            case '\\' -> { put((byte) '\\'); put((byte) '\\'); }
+            case '\t' -> { put((byte) '\\'); put((byte) 't'); }
+            case '\b' -> { put((byte) '\\'); put((byte) 'b'); }
+            case '\n' -> { put((byte) '\\'); put((byte) 'n'); }
+            case '\r' -> { put((byte) '\\'); put((byte) 'r'); }
+            case '\f' -> { put((byte) '\\'); put((byte) 'f'); }
+
+            // Escaped by GSON to be safely embedded in HTML
+            case '<', '>', '&', '=', '\'' -> writeUnicodeEscape(c);
+
+            default -> {
+                if(c < 0x20)
+                    writeUnicodeEscape(c);
+                else
+                    put((byte) c);
+            }
+        }
+    }
+
+    private void writeUnicodeEscape(char c) {
+        put((byte) '\\');
+        put((byte) 'u');
+        put(HEX[(c >> 12) & 0xF]);
+        put(HEX[(c >> 8) & 0xF]);
+        put(HEX[(c >> 4) & 0xF]);
+        put(HEX[c & 0xF]);
+    }
+
+    private void put(byte b) {
+        if(!buffer.hasRemaining() && fragments) {
+            // A single user does not fit in the buffer, but fragments cannot be split: make it bigger
+            buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+        } else if(!buffer.hasRemaining()) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        buffer.put(b);
+    }
+}
@@ -1,125 +1,383 @@
 package fi.aalto.amadei.io;
 
 import fi.aalto.amadei.computing.ComputeController;
+import fi.aalto.amadei.utils.Constants;
+import fi.aalto.amadei.utils.Instances;
+import fi.aalto.amadei.utils.ThreadingMode;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Objects;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Splits the file in -mostly- equal-sized chunks and assign them to a ChunkReader to be read and parsed.
+ * Splits the input files in many small chunks and assign them to a ChunkReader to be read and parsed.
  * Chunk sizes are not always equal since it's fundamental to not split lines into multiple chunks, otherwise parsing
  * cannot be performed. To achieve this, file is first split into equal-size chunk candidates. Each chunk is then
- * extended until the closest newline. Works especially well for big files (> 100MB)
+ * extended until the closest newline.
+ * There are many more chunks than parsing threads: chunks are submitted to a work-stealing pool, so that a thread that
+ * is done with its chunks keeps taking new ones while slower threads are still busy.
+ * With virtual threads, every chunk gets its own virtual thread instead, and at most nThreads chunks are read at the
+ * same time. nThreads can then be much higher than the number of cores, to keep more reads in flight on slow storage.
+ * Compressed files cannot be split: every compressed file is decompressed by a single thread, which cuts the
+ * decompressed content in blocks of whole lines and submits them to the same pool to be parsed. Chunks of all files
+ * share the pool, so several files are read and decompressed in parallel.
  */
 public class ParallelFileReader {
 
+    // Size of the blocks read while looking for the end of a line
+    private static final int SCAN_BLOCK_SIZE = 64 * 1024;
+
+    // Number of decompressed blocks waiting to be parsed, for every parsing thread
+    private static final int PENDING_BLOCKS_PER_THREAD = 2;
+
     private final int nThreads;
-    private final File file;
-    private final FileChannel channel;
-    private final List<ChunkReader> chunkReaders;
+    private final ParsingMode parsingMode;
+    private final int bufferSize;
+    private final int prefetchDepth;
+    private final List<FileChannel> channels;
+    private final List<Runnable> tasks;
+
+    // Position after the last byte read of every file, by input key
+    private final Map<String, InputPosition> inputPositions;
 
     private final ExecutorService executor;
 
+    // Limits the number of chunks read at the same time by virtual threads, null with platform threads
+    private final Semaphore permits;
+
+    // Limits the memory used by decompressed blocks waiting to be parsed
+    private final Semaphore pendingBlocks;
+
+    // Tasks submitted and not done yet, plus one until every initial task is submitted
+    private final AtomicInteger pendingTasks;
+    private final CountDownLatch done;
+    private final Queue<IOException> failures;
+
     private final ComputeController computeController;
 
-    private void computeChunks() throws IOException {
-        long lastAssignedByte = -1;
-        long chunkStart;
-        long chunkSize;
+    private ParallelFileReader(int nThreads, ParsingMode parsingMode, int bufferSize, int prefetchDepth,
+                               ComputeController computeController) {
+        Objects.requireNonNull(parsingMode);
 
-        long fileSize;
-        long expectedChunkSize;
+        this.nThreads = nThreads;
+        this.parsingMode = parsingMode;
+        this.bufferSize = bufferSize;
+        this.prefetchDepth = prefetchDepth;
+        this.channels = new ArrayList<>();
+        this.tasks = new ArrayList<>();
+        this.inputPositions = new LinkedHashMap<>();
 
-        char readChar;
+        if(computeController.getThreadingMode() == ThreadingMode.VIRTUAL) {
+            this.executor = ThreadingMode.VIRTUAL.newExecutor(nThreads, "parser");
+            this.permits = new Semaphore(nThreads);
+        } else {
+            this.executor = new ForkJoinPool(nThreads);
+            this.permits = null;
+        }
 
-        // Open the file as a Random Access File
-        // This way we can read random bytes from it
-        RandomAccessFile randomAccessFile;
-        try {
-            randomAccessFile = new RandomAccessFile(file, "r");
-        } catch (Exception e) {
-            throw new FileNotFoundException();
+        this.pendingBlocks = new Semaphore(nThreads * PENDING_BLOCKS_PER_THREAD);
+        this.pendingTasks = new AtomicInteger(1);
+        this.done = new CountDownLatch(1);
+        this.failures = new ConcurrentLinkedQueue<>();
+
+        this.computeController = computeController;
+    }
+
+    public ParallelFileReader(File file, int nThreads, ParsingMode parsingMode, int bufferSize,
+                              ComputeController computeController) throws IOException {
+        this(file, 0, -1, nThreads, parsingMode, bufferSize, Constants.DEFAULT_PREFETCH_DEPTH, computeController);
+    }
+
+    /**
+     * @param start the position of the first byte to read. Must be the beginning of a line.
+     * @param end the position after the last byte to read, or -1 to read until the end of the file
+     * @param prefetchDepth the number of blocks every chunk reader reads ahead while parsing
+     */
+    public ParallelFileReader(File file, long start, long end, int nThreads, ParsingMode parsingMode, int bufferSize,
+                              int prefetchDepth, ComputeController computeController) throws IOException {
+        this(nThreads, parsingMode, bufferSize, prefetchDepth, computeController);
+        Objects.requireNonNull(file);
+
+        addFile(file, start, end);
+    }
+
+    /**
+     * @param files the files to read, plain or compressed
+     * @param startPositions the position of the first byte to read of every file, by input key, see
+     *                       InputPosition.key(). Files not in the map, or not the ones the positions were taken on, are
+     *                       read from the beginning. Compressed files are either read entirely or skipped.
+     * @param prefetchDepth the number of blocks every chunk reader reads ahead while parsing
+     */
+    public ParallelFileReader(List<File> files, Map<String, InputPosition> startPositions, int nThreads,
+                              ParsingMode parsingMode, int bufferSize, int prefetchDepth,
+                              ComputeController computeController) throws IOException {
+        this(nThreads, parsingMode, bufferSize, prefetchDepth, computeController);
+
+        for(File file : files) {
+            InputPosition position = startPositions.get(InputPosition.key(file));
+            long start = position != null ? position.resumeOffset(file) : 0;
+
+            addFile(file, start, -1);
         }
+    }
+
+    private void addFile(File file, long start, long end) throws IOException {
+        Compression compression = Compression.of(file);
+
+        if(compression != Compression.NONE) {
+            // Compressed files are never appended to: an offset means the whole file was read
+            if(start == 0)
+                tasks.add(() -> decompress(file, compression));
+
+            inputPositions.put(InputPosition.key(file), InputPosition.of(file, file.length()));
+            return;
+        }
+
+        FileChannel channel = new FileInputStream(file).getChannel();
+        channels.add(channel);
+
+        long fileEnd = end < 0 ? channel.size() : Math.min(end, channel.size());
+        computeChunks(file, channel, Math.min(start, fileEnd), fileEnd);
+
+        inputPositions.put(InputPosition.key(file), InputPosition.of(file, fileEnd));
+    }
 
-        // Compute the file size and the expected chunk size
-        fileSize = randomAccessFile.length();
-        expectedChunkSize = (long) Math.ceil((double) fileSize / nThreads);
+    private void computeChunks(File file, FileChannel channel, long start, long end) throws IOException {
+        // Aim for several chunks per thread, but never for chunks too small to be worth scheduling
+        long expectedChunkSize = (long) Math.ceil((double) (end - start) / (nThreads * Constants.CHUNKS_PER_THREAD));
+        expectedChunkSize = Math.max(Constants.MIN_CHUNK_SIZE, Math.min(Constants.MAX_CHUNK_SIZE, expectedChunkSize));
 
-        // For every chunk (except the last one)
-        for(int i = 0; i < nThreads - 1; i++) {
-            // Compute initial chunk start and length
-            chunkStart = lastAssignedByte + 1;
-            chunkSize = expectedChunkSize - 1;
+        ByteBuffer scanBuffer = ByteBuffer.allocate(SCAN_BLOCK_SIZE);
 
-            // Search for first newline
-            do {
-                // Increase chunk size
-                chunkSize++;
+        long chunkStart = start;
+        while(chunkStart < end) {
+            // Extend the candidate chunk until the closest newline
+            long chunkEnd = findLineEnd(channel, chunkStart + expectedChunkSize - 1, end, scanBuffer);
 
-                // Go to last byte of chunk
-                randomAccessFile.seek(chunkStart + chunkSize - 1);
+            ChunkReader chunkReader = new ChunkReader(chunkStart, chunkEnd - chunkStart, channel, parsingMode,
+                    bufferSize, prefetchDepth, computeController);
+            tasks.add(() -> parse(file, chunkReader));
 
-                // Read its value
-                readChar = (char) randomAccessFile.read();
+            chunkStart = chunkEnd;
+        }
+    }
+
+    /**
+     * Finds the end of the line containing a byte, reading the file one block at a time
+     * @param channel the channel of the file
+     * @param position the position of the byte
+     * @param fileSize the size of the file
+     * @param scanBuffer the buffer to use for reading
+     * @return the position right after the first newline found at or after the given position, or the file size if
+     * there is none
+     */
+    private static long findLineEnd(FileChannel channel, long position, long fileSize, ByteBuffer scanBuffer)
+            throws IOException {
+        while(position < fileSize) {
+            scanBuffer.clear();
 
-                // Continue until last char it's a \n
-            } while (readChar != '\n');
+            int read = channel.read(scanBuffer, position);
+            if(read <= 0)
+                break;
 
-            // Compute the new last assigned byte
-            lastAssignedByte = chunkStart + chunkSize - 1;
+            int newline = Instances.scanner().indexOf(scanBuffer.array(), 0, read, (byte) '\n');
+            if(newline >= 0)
+                return position + newline + 1;
 
-            // Add new Chunk to list
-            chunkReaders.add(new ChunkReader(chunkStart, chunkSize, channel, computeController));
+            position += read;
         }
 
-        // Last chunk
-        chunkReaders.add(new ChunkReader(
-                lastAssignedByte + 1, fileSize - lastAssignedByte - 1,
-                channel, computeController));
+        return fileSize;
     }
 
-    public ParallelFileReader(File file, int nThreads, ComputeController computeController) throws IOException {
-        Objects.requireNonNull(file);
+    /**
+     * Decompresses a file, cutting its content in blocks of whole lines parsed by the pool. When too many blocks are
+     * already waiting, the block is parsed by the decompressing thread itself, which bounds the memory used.
+     * @param file the file
+     * @param compression the compression format of the file
+     */
+    private void decompress(File file, Compression compression) {
+        try(InputStream in = compression.open(file)) {
+            byte[] block = new byte[Math.max(1, bufferSize)];
+            int length = 0;
 
-        this.file = file;
-        this.nThreads = nThreads;
-        this.channel = new FileInputStream(file).getChannel();
-        this.chunkReaders = new ArrayList<>(nThreads);
+            // Position of the block in the decompressed content
+            long position = 0;
 
-        this.executor = Executors.newFixedThreadPool(nThreads);
+            while(true) {
+                length += in.readNBytes(block, length, block.length - length);
+                boolean lastBlock = length < block.length;
 
-        this.computeController = computeController;
+                // The content ended with a newline, right at the end of the previous block
+                if(lastBlock && length == 0)
+                    break;
+
+                int end = lastBlock ? length : lastLineEnd(block, length);
 
-        computeChunks();
+                // A single line does not fit in the block: make it bigger
+                if(end == 0) {
+                    block = Arrays.copyOf(block, block.length * 2);
+                    continue;
+                }
+
+                // The block now belongs to its ChunkReader, the incomplete last line starts the next one
+                byte[] next = new byte[block.length];
+                System.arraycopy(block, end, next, 0, length - end);
+
+                parseBlock(file, new ChunkReader(position, block, end, parsingMode, computeController));
+
+                if(lastBlock)
+                    break;
+
+                position += end;
+                length -= end;
+                block = next;
+            }
+        } catch (IOException e) {
+            failures.add(new IOException(file.getName() + ": " + e.getMessage(), e));
+        }
+    }
+
+    private static int lastLineEnd(byte[] data, int length) {
+        return Instances.scanner().lastIndexOf(data, 0, length, (byte) '\n') + 1;
+    }
+
+    private void parseBlock(File file, ChunkReader chunkReader) {
+        if(!pendingBlocks.tryAcquire()) {
+            parse(file, chunkReader);
+            return;
+        }
+
+        submit(() -> {
+            try {
+                parse(file, chunkReader);
+            } finally {
+                pendingBlocks.release();
+            }
+        });
+    }
+
+    private void parse(File file, ChunkReader chunkReader) {
+        chunkReader.run();
+
+        if(chunkReader.getFailure() != null)
+            failures.add(new IOException(file.getName() + ": " + chunkReader.getFailure().getMessage(),
+                    chunkReader.getFailure()));
+    }
+
+    private void submit(Runnable task) {
+        pendingTasks.incrementAndGet();
+
+        executor.execute(() -> {
+            try {
+                if(permits == null) {
+                    task.run();
+                    return;
+                }
+
+                permits.acquireUninterruptibly();
+
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            } catch (RuntimeException | Error e) {
+                // A task that died must fail the run like a chunk that could not be read, never go unnoticed
+                failures.add(new IOException("Unable to read the input: " + e, e));
+            } finally {
+                taskDone();
+            }
+        });
+    }
+
+    private void taskDone() {
+        if(pendingTasks.decrementAndGet() == 0)
+            done.countDown();
+    }
+
+    /**
+     * @return the position after the last byte read of every file, by input key. Compressed files are always read
+     * entirely: their position is their size.
+     */
+    public Map<String, InputPosition> getInputPositions() {
+        return Collections.unmodifiableMap(inputPositions);
+    }
+
+    /**
+     * Changes the number of threads parsing the file. Can be called while the file is being read.
+     * Only supported with platform threads: with virtual threads the number of chunks read at the same time is fixed.
+     * @param nThreads the new number of threads
+     */
+    public void setParallelism(int nThreads) {
+        if(executor instanceof ForkJoinPool pool)
+            pool.setParallelism(nThreads);
+    }
+
+    public int getParallelism() {
+        return executor instanceof ForkJoinPool pool ? pool.getParallelism() : nThreads;
     }
 
     /**
      * Signals every Chunk Reader to start reading, parsing requests and sending them to the Compute Controller.
-     * Wait for all parsing workers to stop. If after 60 seconds parsing is not done, force them to shut down.
+     * Waits for all parsing workers to stop, however long it takes: parsing threads are slowed down by the computing
+     * threads whenever their queues are full.
+     * Once done, signals the Compute Controller that parsing is over, even if a chunk could not be read.
+     * @throws IOException if a chunk could not be read or parsed entirely. Other chunks are still read.
      */
-    public void readAll() {
-        // Start all threads
-        for(ChunkReader i : chunkReaders) {
-            executor.execute(i);
+    public void readAll() throws IOException {
+        try {
+            read();
+        } finally {
+            computeController.parsingDone();
         }
+    }
 
-        // Ask for shutdown
-        executor.shutdown();
+    /**
+     * Like readAll(), without signalling the Compute Controller that parsing is over, so that more requests can be
+     * sent afterwards
+     */
+    public void read() throws IOException {
+        // Submit all chunks and decompressing tasks
+        for(Runnable task : tasks)
+            submit(task);
 
-        // Wait for shutdown or force interrupt after 60 seconds
-        try {
-            if (!executor.awaitTermination(60, TimeUnit.SECONDS))
-                executor.shutdownNow();
+        taskDone();
 
+        // Decompressing tasks keep submitting blocks: wait until no task is left rather than for the pool to shut down.
+        // A timeout would silently drop the chunks not read yet.
+        try {
+            done.await();
         } catch (InterruptedException e) {
             executor.shutdownNow();
             Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading the input");
+        } finally {
+            executor.shutdown();
+            closeChannels();
+        }
+
+        // Report the first chunk that could not be read, and the others along with it
+        IOException failure = failures.poll();
+
+        if(failure != null) {
+            for(IOException other : failures)
+                failure.addSuppressed(other);
+
+            throw failure;
+        }
+    }
+
+    private void closeChannels() {
+        for(FileChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Unable to close file: " + e.getMessage());
+            }
         }
     }
 }
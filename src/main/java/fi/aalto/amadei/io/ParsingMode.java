@@ -0,0 +1,18 @@
+package fi.aalto.amadei.io;
+
+/**
+ * Strategy used by a ChunkReader to convert a line of the input file into a request
+ */
+public enum ParsingMode {
+
+    /**
+     * Every line is decoded into a String and parsed by GSON
+     */
+    GSON,
+
+    /**
+     * Lines are parsed directly from the raw bytes by the FastRequestParser. Lines it does not understand are handed
+     * over to GSON.
+     */
+    FAST
+}
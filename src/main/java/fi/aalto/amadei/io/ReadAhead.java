@@ -0,0 +1,172 @@
+package fi.aalto.amadei.io;
+
+import fi.aalto.amadei.utils.ThreadingMode;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads a range of a file in consecutive blocks, loading the next blocks on I/O threads while the current one is
+ * parsed, so that reading and parsing overlap within a single ChunkReader.
+ * At most prefetchDepth blocks are being read or waiting to be parsed at any time, besides the one being parsed: the
+ * memory used is (prefetchDepth + 1) blocks. Blocks are reused once given back with release().
+ * With a prefetch depth of 0, every block is read by the calling thread when asked for, like a plain read loop.
+ * The time spent waiting for a block, either for a read or for a prefetch to complete, is measured.
+ */
+class ReadAhead {
+
+    // Reads are short and blocking: a thread per read in flight, reused across readers
+    private static final ExecutorService PLATFORM_READERS = Executors.newCachedThreadPool(
+            Thread.ofPlatform().name("read-ahead-", 0).daemon().factory());
+    private static final ExecutorService VIRTUAL_READERS = Executors.newThreadPerTaskExecutor(
+            Thread.ofVirtual().name("read-ahead-", 0).factory());
+
+    /**
+     * A block of the file
+     * @param buffer the content of the block, from index 0 to its position
+     * @param position the position of the block in the file
+     */
+    record Block(ByteBuffer buffer, long position) {}
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final int prefetchDepth;
+    private final ExecutorService readers;
+
+    private final Queue<CompletableFuture<Block>> pending;
+
+    // The only buffer without prefetching
+    private ByteBuffer buffer;
+
+    // Position of the next block to read, and end of the range
+    private long nextPosition;
+    private final long end;
+
+    private long waitNanos;
+
+    /**
+     * @param start the position of the first byte of the range
+     * @param length the length of the range
+     * @param blockSize the size of every block
+     * @param prefetchDepth the number of blocks read ahead of the one being parsed
+     * @param threadingMode the kind of threads reading ahead
+     */
+    ReadAhead(FileChannel channel, long start, long length, int blockSize, int prefetchDepth,
+              ThreadingMode threadingMode) {
+        this.channel = channel;
+        this.blockSize = (int) Math.max(1, Math.min(blockSize, length));
+        this.prefetchDepth = prefetchDepth;
+        this.readers = threadingMode == ThreadingMode.VIRTUAL ? VIRTUAL_READERS : PLATFORM_READERS;
+
+        this.pending = new ArrayDeque<>();
+        this.nextPosition = start;
+        this.end = start + length;
+
+        for(int i = 0; i < prefetchDepth; i++)
+            prefetch(ByteBuffer.allocate(this.blockSize));
+    }
+
+    /**
+     * Waits for the next block
+     * @return the next block, or null if the whole range was read
+     */
+    Block next() throws IOException {
+        long start = System.nanoTime();
+
+        try {
+            if(prefetchDepth == 0) {
+                if(nextPosition >= end)
+                    return null;
+
+                if(buffer == null)
+                    buffer = ByteBuffer.allocate(blockSize);
+
+                Block block = read(buffer, nextPosition);
+
+                // A block is only cut short by the end of the file
+                nextPosition = buffer.hasRemaining() ? end : nextPosition + buffer.position();
+                return block;
+            }
+
+            CompletableFuture<Block> block = pending.poll();
+            return block == null ? null : block.join();
+        } catch (CompletionException e) {
+            if(e.getCause() instanceof UncheckedIOException cause)
+                throw cause.getCause();
+
+            throw e;
+        } finally {
+            waitNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Gives back a block once parsed, so that its buffer is used to read ahead
+     * @param block the block
+     */
+    void release(Block block) {
+        if(prefetchDepth > 0)
+            prefetch(block.buffer());
+    }
+
+    /**
+     * @return the time spent waiting in next(), in nanoseconds
+     */
+    long getWaitNanos() {
+        return waitNanos;
+    }
+
+    /**
+     * Waits for the reads still in flight, so that the channel can be closed
+     */
+    void close() {
+        for(CompletableFuture<Block> block : pending) {
+            try {
+                block.join();
+            } catch (CompletionException e) {
+                // Nobody is waiting for the block anymore
+            }
+        }
+
+        pending.clear();
+    }
+
+    private void prefetch(ByteBuffer buffer) {
+        if(nextPosition >= end)
+            return;
+
+        long position = nextPosition;
+        nextPosition = Math.min(end, nextPosition + blockSize);
+
+        pending.add(CompletableFuture.supplyAsync(() -> {
+            try {
+                return read(buffer, position);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, readers));
+    }
+
+    /**
+     * Reads a block, stopping early only at the end of the file
+     */
+    private Block read(ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - position));
+
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, position + buffer.position()) < 0)
+                break;
+        }
+
+        return new Block(buffer, position);
+    }
+}
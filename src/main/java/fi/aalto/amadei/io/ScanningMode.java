@@ -0,0 +1,46 @@
+package fi.aalto.amadei.io;
+
+/**
+ * Available ByteScanner implementations
+ */
+public enum ScanningMode {
+
+    /**
+     * 8 bytes at a time in a long, see SwarByteScanner
+     */
+    SWAR,
+
+    /**
+     * A whole vector register at a time, see VectorByteScanner. Only available if the JVM was started with
+     * --add-modules jdk.incubator.vector
+     */
+    VECTOR;
+
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+
+    /**
+     * @return true if this scanner can be used by the running JVM
+     */
+    public boolean isAvailable() {
+        return this != VECTOR || ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent();
+    }
+
+    /**
+     * @return a new scanner of this type
+     * @throws IllegalStateException if it is not available
+     */
+    public ByteScanner create() {
+        if(!isAvailable())
+            throw new IllegalStateException(this + " scanning needs --add-modules " + VECTOR_MODULE);
+
+        // The vector scanner is only loaded once the module is known to be there
+        return this == VECTOR ? new VectorByteScanner() : new SwarByteScanner();
+    }
+
+    /**
+     * @return the fastest scanner available to the running JVM
+     */
+    public static ScanningMode best() {
+        return VECTOR.isAvailable() ? VECTOR : SWAR;
+    }
+}
@@ -0,0 +1,213 @@
+package fi.aalto.amadei.io;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Describes a snapshot directory: how the state was partitioned, how far every input file had been read when the
+ * snapshot was taken, and which users were split by key over several partitions.
+ * The state of every partition is stored next to the manifest in its own file, see SnapshotWriter. Every snapshot saved
+ * into a directory is a new generation whose partition files have their own names: the previous snapshot stays
+ * complete until the new manifest replaces the previous one, and its partition files are deleted afterwards.
+ * Input files are identified by their canonical path, so that files with the same name in different directories are
+ * never mixed up, and their offsets are only trusted for the file they were taken on, see InputPosition. An input that
+ * was moved or replaced is read again from the beginning, which is harmless, only slower: updates older than the
+ * stored ones are ignored.
+ */
+public class SnapshotManifest {
+
+    private static final int MAGIC = 0x5343324D; // "SC2M"
+    private static final int VERSION = 3;
+
+    private static final String MANIFEST_FILE = "manifest.bin";
+    private static final Pattern PARTITION_FILE = Pattern.compile("partition-(\\d+)-\\d+\\.bin");
+
+    private final long generation;
+    private final int partitionCount;
+    private final String partitioningMode;
+    private final Map<String, InputPosition> inputPositions;
+    private final Set<String> splitUsers;
+
+    /**
+     * @param generation the generation of the snapshot, naming its partition files, see nextGeneration()
+     */
+    public SnapshotManifest(long generation, int partitionCount, String partitioningMode,
+                            Map<String, InputPosition> inputPositions, Set<String> splitUsers) {
+        this.generation = generation;
+        this.partitionCount = partitionCount;
+        this.partitioningMode = partitioningMode;
+        this.inputPositions = Map.copyOf(inputPositions);
+        this.splitUsers = Set.copyOf(splitUsers);
+    }
+
+    /**
+     * Finds a generation not used by any partition file of a snapshot directory yet, so that writing a new snapshot
+     * never overwrites a file of the one currently described by the manifest
+     * @param directory the snapshot directory
+     * @return the generation of the next snapshot
+     */
+    public static long nextGeneration(File directory) {
+        long generation = 0;
+
+        for(String name : partitionFileNames(directory))
+            generation = Math.max(generation, generationOf(name) + 1);
+
+        return generation;
+    }
+
+    private static List<String> partitionFileNames(File directory) {
+        String[] names = directory.list((dir, name) -> PARTITION_FILE.matcher(name).matches());
+
+        return names != null ? Arrays.asList(names) : List.of();
+    }
+
+    private static long generationOf(String partitionFileName) {
+        Matcher matcher = PARTITION_FILE.matcher(partitionFileName);
+        matcher.matches();
+
+        return Long.parseLong(matcher.group(1));
+    }
+
+    /**
+     * @param directory the snapshot directory
+     * @param partition the index of a partition
+     * @return the file containing the state of the partition
+     */
+    public File partitionFile(File directory, int partition) {
+        return new File(directory, "partition-" + generation + "-" + partition + ".bin");
+    }
+
+    /**
+     * Writes the manifest into a snapshot directory, replacing the previous one, then deletes the partition files of
+     * the previous snapshots. To be done once every partition has been written, so that a directory with a manifest
+     * always contains a complete snapshot.
+     * @param directory the snapshot directory
+     */
+    public void write(File directory) throws IOException {
+        File temporary = new File(directory, MANIFEST_FILE + ".tmp");
+
+        try(FileOutputStream file = new FileOutputStream(temporary);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeInt(partitionCount);
+            SnapshotWriter.writeString(out, partitioningMode);
+
+            out.writeInt(inputPositions.size());
+            for(Map.Entry<String, InputPosition> entry : inputPositions.entrySet()) {
+                InputPosition position = entry.getValue();
+
+                SnapshotWriter.writeString(out, entry.getKey());
+                // An empty file key stands for an unknown one
+                SnapshotWriter.writeString(out, position.getFileKey() != null ? position.getFileKey() : "");
+                out.writeLong(position.getSize());
+                out.writeLong(position.getLastModified());
+                out.writeLong(position.getHeadChecksum());
+                out.writeLong(position.getOffset());
+            }
+
+            out.writeInt(splitUsers.size());
+            for(String user : splitUsers)
+                SnapshotWriter.writeString(out, user);
+
+            out.flush();
+            file.getFD().sync();
+        }
+
+        // Replace the previous manifest only once the new one is complete
+        Files.move(temporary.toPath(), new File(directory, MANIFEST_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // Files of the previous snapshots are not referenced anymore
+        for(String name : partitionFileNames(directory)) {
+            if(generationOf(name) != generation)
+                Files.deleteIfExists(new File(directory, name).toPath());
+        }
+    }
+
+    /**
+     * Reads the manifest of a snapshot directory
+     * @param directory the snapshot directory
+     * @return the manifest
+     */
+    public static SnapshotManifest read(File directory) throws IOException {
+        File manifest = new File(directory, MANIFEST_FILE);
+
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)))) {
+            if(in.readInt() != MAGIC)
+                throw new IOException("Not a snapshot manifest: " + manifest);
+
+            int version = in.readInt();
+            if(version != VERSION)
+                throw new IOException("Unsupported snapshot version " + version + ": " + manifest);
+
+            long generation = in.readLong();
+            int partitionCount = in.readInt();
+            String partitioningMode = readString(in);
+
+            Map<String, InputPosition> inputPositions = new HashMap<>();
+            int nInputs = in.readInt();
+            for(int i = 0; i < nInputs; i++) {
+                String input = readString(in);
+                String fileKey = readString(in);
+
+                inputPositions.put(input, new InputPosition(fileKey.isEmpty() ? null : fileKey, in.readLong(),
+                        in.readLong(), in.readLong(), in.readLong()));
+            }
+
+            Set<String> splitUsers = new HashSet<>();
+            int nSplitUsers = in.readInt();
+            for(int i = 0; i < nSplitUsers; i++)
+                splitUsers.add(readString(in));
+
+            return new SnapshotManifest(generation, partitionCount, partitioningMode, inputPositions, splitUsers);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    public String getPartitioningMode() {
+        return partitioningMode;
+    }
+
+    /**
+     * @param file an input file
+     * @return the number of bytes of the file already applied to the snapshot, or 0 if the file is unknown or is not
+     * the one the snapshot was taken on
+     */
+    public long getInputOffset(File file) throws IOException {
+        InputPosition position = inputPositions.get(InputPosition.key(file));
+
+        return position != null ? position.resumeOffset(file) : 0;
+    }
+
+    /**
+     * @return how far every input file had been read, by input key
+     */
+    public Map<String, InputPosition> getInputPositions() {
+        return inputPositions;
+    }
+
+    public Set<String> getSplitUsers() {
+        return splitUsers;
+    }
+}
@@ -0,0 +1,152 @@
+package fi.aalto.amadei.io;
+
+import fi.aalto.amadei.model.StateVisitor;
+import fi.aalto.amadei.model.StringDictionary;
+import fi.aalto.amadei.utils.Instances;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a binary snapshot written by a SnapshotWriter.
+ * The file is memory-mapped, one window at a time so that files bigger than a single mapping can be read as well,
+ * and decoded sequentially without copying it on the heap first.
+ * The partition in the header must be the one expected by the manifest, and the file must end right after the last
+ * user, so that a partition of another snapshot or a partially written one is never loaded.
+ */
+public class SnapshotReader {
+
+    private static final int WINDOW_SIZE = 256 * 1024 * 1024;
+
+    private final File file;
+    private final int expectedPartition;
+    private final int expectedPartitionCount;
+
+    private int userCount;
+
+    private FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    /**
+     * @param partition the index of the partition the file must contain
+     * @param partitionCount the number of partitions of the snapshot
+     */
+    public SnapshotReader(File file, int partition, int partitionCount) {
+        this.file = file;
+        this.expectedPartition = partition;
+        this.expectedPartitionCount = partitionCount;
+    }
+
+    /**
+     * Reads the whole snapshot
+     * @param visitor the visitor receiving the state of every user
+     */
+    public void read(StateVisitor visitor) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            this.channel = channel;
+            map(0);
+
+            if(readInt() != SnapshotWriter.MAGIC)
+                throw new IOException("Not a snapshot: " + file);
+
+            int version = readInt();
+            if(version != SnapshotWriter.VERSION)
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+
+            int partition = readInt();
+            int partitionCount = readInt();
+            if(partition != expectedPartition || partitionCount != expectedPartitionCount)
+                throw new IOException("Expected partition " + expectedPartition + " of " + expectedPartitionCount +
+                        " but found partition " + partition + " of " + partitionCount + ": " + file);
+
+            userCount = readInt();
+
+            // Keys share their instances with the ones of parsed requests
+            StringDictionary dictionary = Instances.dictionary();
+            List<String> keys = new ArrayList<>();
+
+            for(int i = 0; i < userCount; i++) {
+                visitor.beginUser(readString());
+
+                int valueCount = readInt();
+                for(int j = 0; j < valueCount; j++) {
+                    int keyId = readInt();
+
+                    String key;
+                    if(keyId < 0) {
+                        key = dictionary.intern(readString());
+                        keys.add(key);
+                    } else {
+                        key = keys.get(keyId);
+                    }
+
+                    long timestamp = readLong();
+                    visitor.value(key, timestamp, readString());
+                }
+
+                visitor.endUser();
+            }
+
+            if(windowStart + window.position() != channel.size())
+                throw new IOException("Unexpected data after the last user of the snapshot: " + file);
+        } finally {
+            channel = null;
+            window = null;
+        }
+    }
+
+    public int getUserCount() {
+        return userCount;
+    }
+
+    private void map(long position) throws IOException {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, channel.size() - position));
+    }
+
+    /**
+     * Makes sure the next bytes are in the current window, moving the window forward if needed
+     * @param length the number of bytes
+     */
+    private void ensure(int length) throws IOException {
+        if(window.remaining() >= length)
+            return;
+
+        long position = windowStart + window.position();
+
+        if(channel.size() - position < length)
+            throw new IOException("Truncated snapshot: " + file);
+
+        map(position);
+    }
+
+    private int readInt() throws IOException {
+        ensure(Integer.BYTES);
+        return window.getInt();
+    }
+
+    private long readLong() throws IOException {
+        ensure(Long.BYTES);
+        return window.getLong();
+    }
+
+    private String readString() throws IOException {
+        int length = readInt();
+        if(length < 0)
+            return null;
+
+        ensure(length);
+
+        byte[] bytes = new byte[length];
+        window.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,126 @@
+package fi.aalto.amadei.io;
+
+import fi.aalto.amadei.model.StateStorage;
+import fi.aalto.amadei.model.StateVisitor;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the state of a partition as a binary snapshot, to be read back by a SnapshotReader.
+ * All numbers are big-endian, Strings are written as their length in bytes followed by their UTF-8 bytes (a length of
+ * -1 stands for null). The file starts with a header:
+ * <pre>
+ * int magic, int version, int partition, int partition count, int user count
+ * </pre>
+ * followed by every user:
+ * <pre>
+ * String user, int value count, then for every value: int key reference, long timestamp, String value
+ * </pre>
+ * Keys are dictionary-encoded: a key reference is the id of a key already defined in the file, or -1 followed by the
+ * String of a new key, whose id is the number of keys defined so far. Every field can therefore be read sequentially,
+ * straight from a memory-mapped file.
+ */
+public class SnapshotWriter implements StateVisitor {
+
+    public static final int MAGIC = 0x53433250; // "SC2P"
+    public static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> keyIds;
+
+    // Values of the current user, written once the user is complete since their count must come first
+    private final ByteArrayOutputStream userValues;
+    private final DataOutputStream userOut;
+    private int valueCount;
+
+    public SnapshotWriter(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        this.keyIds = new HashMap<>();
+
+        this.userValues = new ByteArrayOutputStream();
+        this.userOut = new DataOutputStream(userValues);
+    }
+
+    /**
+     * Writes a whole partition, then flushes
+     * @param stateStorage the state of the partition
+     * @param partition the index of the partition
+     * @param partitionCount the number of partitions
+     */
+    public void write(StateStorage stateStorage, int partition, int partitionCount) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(partition);
+        out.writeInt(partitionCount);
+        out.writeInt(stateStorage.size());
+
+        try {
+            stateStorage.accept(this);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        out.flush();
+    }
+
+    @Override
+    public void beginUser(String user) {
+        try {
+            writeString(out, user);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        userValues.reset();
+        valueCount = 0;
+    }
+
+    @Override
+    public void value(String key, long timestamp, String value) {
+        try {
+            Integer keyId = keyIds.get(key);
+
+            if(keyId != null) {
+                userOut.writeInt(keyId);
+            } else {
+                keyIds.put(key, keyIds.size());
+
+                userOut.writeInt(-1);
+                writeString(userOut, key);
+            }
+
+            userOut.writeLong(timestamp);
+            writeString(userOut, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        valueCount++;
+    }
+
+    @Override
+    public void endUser() {
+        try {
+            out.writeInt(valueCount);
+            userValues.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        if(string == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
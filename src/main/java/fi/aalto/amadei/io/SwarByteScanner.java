@@ -0,0 +1,92 @@
+package fi.aalto.amadei.io;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Scans 8 bytes at a time within a long (SIMD within a register). Works on every JVM, and is used when the Vector API
+ * is not available.
+ */
+public class SwarByteScanner implements ByteScanner {
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+
+    @Override
+    public int indexOf(byte[] data, int from, int to, byte b) {
+        long pattern = (b & 0xFFL) * ONES;
+        int i = from;
+
+        for(; i + Long.BYTES <= to; i += Long.BYTES) {
+            long found = zeroBytes((long) LONGS.get(data, i) ^ pattern);
+
+            if(found != 0)
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+
+        for(; i < to; i++) {
+            if(data[i] == b)
+                return i;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public int indexOfEither(byte[] data, int from, int to, byte a, byte b) {
+        long patternA = (a & 0xFFL) * ONES;
+        long patternB = (b & 0xFFL) * ONES;
+        int i = from;
+
+        for(; i + Long.BYTES <= to; i += Long.BYTES) {
+            long word = (long) LONGS.get(data, i);
+            long found = zeroBytes(word ^ patternA) | zeroBytes(word ^ patternB);
+
+            if(found != 0)
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+
+        for(; i < to; i++) {
+            if(data[i] == a || data[i] == b)
+                return i;
+        }
+
+        return -1;
+    }
+
+    @Override
+    public int lastIndexOf(byte[] data, int from, int to, byte b) {
+        long pattern = (b & 0xFFL) * ONES;
+        int i = to;
+
+        for(; i - Long.BYTES >= from; i -= Long.BYTES) {
+            long found = zeroBytes((long) LONGS.get(data, i - Long.BYTES) ^ pattern);
+
+            if(found != 0)
+                return i - Long.BYTES + ((63 - Long.numberOfLeadingZeros(found)) >>> 3);
+        }
+
+        for(i--; i >= from; i--) {
+            if(data[i] == b)
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the zero bytes of a word
+     * @return a word with the high bit of every zero byte set, and nothing else. Unlike the shorter
+     * (x - 0x01..) & ~x & 0x80.. it never reports a byte above a zero byte, so both the lowest and the highest bit
+     * can be trusted.
+     */
+    private static long zeroBytes(long word) {
+        long low = (word & LOW_BITS) + LOW_BITS;
+
+        return ~(low | word | LOW_BITS);
+    }
+}
@@ -0,0 +1,60 @@
+package fi.aalto.amadei.io;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Scans as many bytes at a time as the widest vector registers of the CPU hold, using the Vector API.
+ * The Vector API is an incubator module: this class can only be loaded if the JVM was started with
+ * --add-modules jdk.incubator.vector, see ScanningMode. Ranges shorter than a vector are scanned by the SWAR scanner.
+ */
+public class VectorByteScanner implements ByteScanner {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    private final ByteScanner tail = new SwarByteScanner();
+
+    @Override
+    public int indexOf(byte[] data, int from, int to, byte b) {
+        int i = from;
+
+        for(int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            VectorMask<Byte> found = ByteVector.fromArray(SPECIES, data, i).eq(b);
+
+            if(found.anyTrue())
+                return i + found.firstTrue();
+        }
+
+        return tail.indexOf(data, i, to, b);
+    }
+
+    @Override
+    public int indexOfEither(byte[] data, int from, int to, byte a, byte b) {
+        int i = from;
+
+        for(int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            ByteVector vector = ByteVector.fromArray(SPECIES, data, i);
+            VectorMask<Byte> found = vector.eq(a).or(vector.eq(b));
+
+            if(found.anyTrue())
+                return i + found.firstTrue();
+        }
+
+        return tail.indexOfEither(data, i, to, a, b);
+    }
+
+    @Override
+    public int lastIndexOf(byte[] data, int from, int to, byte b) {
+        int i = to;
+
+        for(int bound = to - SPECIES.loopBound(to - from); i > bound; i -= SPECIES.length()) {
+            VectorMask<Byte> found = ByteVector.fromArray(SPECIES, data, i - SPECIES.length()).eq(b);
+
+            if(found.anyTrue())
+                return i - SPECIES.length() + found.lastTrue();
+        }
+
+        return tail.lastIndexOf(data, from, i, b);
+    }
+}
@@ -0,0 +1,327 @@
+package fi.aalto.amadei.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntToLongFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of every stage of the pipeline: reading and parsing, dispatch to the workers, updates and serialization of
+ * the result.
+ * Counters are cheap enough to be always on: they are LongAdders, so threads never contend on them, and they are
+ * updated once per chunk, per batch or per partition rather than once per line. Only a queue waiting for its worker
+ * is timed on the dispatch side.
+ */
+public class PipelineMetrics implements PipelineMetricsMXBean {
+
+    private static final String OBJECT_NAME = "fi.aalto.amadei:type=PipelineMetrics";
+
+    private final long startNanos;
+
+    // Reading and parsing
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder linesParsed = new LongAdder();
+    private final LongAdder fallbackLines = new LongAdder();
+    private final LongAdder parseErrors = new LongAdder();
+    private final LongAdder chunksRead = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder readWaitNanos = new LongAdder();
+    private final LongAccumulator minChunkBytesPerSecond = new LongAccumulator(Math::min, Long.MAX_VALUE);
+    private final LongAccumulator maxChunkBytesPerSecond = new LongAccumulator(Math::max, 0);
+
+    // Dispatch
+    private final LongAdder batchesSent = new LongAdder();
+    private final LongAdder requestsSent = new LongAdder();
+    private final LongAdder sendWaits = new LongAdder();
+    private final LongAdder sendBlockedNanos = new LongAdder();
+    private final LongAdder queueLatencyNanos = new LongAdder();
+    private final LongAccumulator maxQueueLatencyNanos = new LongAccumulator(Math::max, 0);
+
+    // Workers
+    private final LongAdder[] workerRequests;
+    private final LongAdder[] workerBusyNanos;
+    private IntToLongFunction queuedBatches = worker -> 0;
+
+    // Output
+    private final LongAdder serializeNanos = new LongAdder();
+    private final LongAdder splitMergeNanos = new LongAdder();
+
+    public PipelineMetrics(int nWorkers) {
+        this.startNanos = System.nanoTime();
+
+        this.workerRequests = new LongAdder[nWorkers];
+        this.workerBusyNanos = new LongAdder[nWorkers];
+
+        for(int i = 0; i < nWorkers; i++) {
+            workerRequests[i] = new LongAdder();
+            workerBusyNanos[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server, replacing the ones of a previous run in the same JVM
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+
+            if(server.isRegistered(name))
+                server.unregisterMBean(name);
+
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            System.err.println("Unable to register metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Accounts a chunk of the input read and parsed
+     * @param bytes the number of bytes of the chunk read, up to the line that could not be parsed if reading failed
+     * @param lines the number of non-blank lines parsed
+     * @param fallbackLines the number of lines parsed by GSON because the fast parser could not
+     * @param nanos the time spent reading and parsing
+     */
+    public void recordChunk(long bytes, long lines, long fallbackLines, long nanos) {
+        bytesRead.add(bytes);
+        linesParsed.add(lines);
+        this.fallbackLines.add(fallbackLines);
+        chunksRead.increment();
+        parseNanos.add(nanos);
+
+        if(nanos > 0) {
+            long bytesPerSecond = (long) (bytes * 1e9 / nanos);
+
+            minChunkBytesPerSecond.accumulate(bytesPerSecond);
+            maxChunkBytesPerSecond.accumulate(bytesPerSecond);
+        }
+    }
+
+    /**
+     * Accounts the time a parsing thread waited for the input to be read, rather than parsing it
+     * @param nanos the time spent waiting
+     */
+    public void recordReadWait(long nanos) {
+        readWaitNanos.add(nanos);
+    }
+
+    /**
+     * Accounts a line that could not be parsed. Reading a chunk stops at its first such line.
+     */
+    public void recordParseError() {
+        parseErrors.increment();
+    }
+
+    /**
+     * Accounts a batch sent to a worker
+     * @param requests the number of requests of the batch
+     * @param blockedNanos the time spent waiting for room in the queue of the worker
+     */
+    public void recordSend(int requests, long blockedNanos) {
+        batchesSent.increment();
+        requestsSent.add(requests);
+
+        if(blockedNanos > 0) {
+            sendWaits.increment();
+            sendBlockedNanos.add(blockedNanos);
+        }
+    }
+
+    /**
+     * Accounts a batch executed by a worker
+     * @param worker the index of the worker
+     * @param requests the number of requests of the batch
+     * @param latencyNanos the time the batch spent in the queue
+     * @param busyNanos the time spent executing the batch
+     */
+    public void recordBatch(int worker, int requests, long latencyNanos, long busyNanos) {
+        workerRequests[worker].add(requests);
+        workerBusyNanos[worker].add(busyNanos);
+
+        queueLatencyNanos.add(latencyNanos);
+        maxQueueLatencyNanos.accumulate(latencyNanos);
+    }
+
+    /**
+     * Sets how to find the number of batches waiting in the queues of a worker
+     * @param queuedBatches function from the index of a worker to its number of queued batches
+     */
+    public void setQueuedBatches(IntToLongFunction queuedBatches) {
+        this.queuedBatches = queuedBatches;
+    }
+
+    public void recordSerialize(long nanos) {
+        serializeNanos.add(nanos);
+    }
+
+    public void recordSplitMerge(long nanos) {
+        splitMergeNanos.add(nanos);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getLinesParsed() {
+        return linesParsed.sum();
+    }
+
+    @Override
+    public long getFallbackLines() {
+        return fallbackLines.sum();
+    }
+
+    @Override
+    public long getParseErrors() {
+        return parseErrors.sum();
+    }
+
+    @Override
+    public long getChunksRead() {
+        return chunksRead.sum();
+    }
+
+    @Override
+    public long getParseNanos() {
+        return parseNanos.sum();
+    }
+
+    @Override
+    public long getReadWaitNanos() {
+        return readWaitNanos.sum();
+    }
+
+    @Override
+    public double getMinChunkBytesPerSecond() {
+        long min = minChunkBytesPerSecond.get();
+        return min == Long.MAX_VALUE ? 0 : min;
+    }
+
+    @Override
+    public double getMaxChunkBytesPerSecond() {
+        return maxChunkBytesPerSecond.get();
+    }
+
+    @Override
+    public long getBatchesSent() {
+        return batchesSent.sum();
+    }
+
+    @Override
+    public long getRequestsSent() {
+        return requestsSent.sum();
+    }
+
+    @Override
+    public long getSendWaits() {
+        return sendWaits.sum();
+    }
+
+    @Override
+    public long getSendBlockedNanos() {
+        return sendBlockedNanos.sum();
+    }
+
+    @Override
+    public long getQueueLatencyNanos() {
+        return queueLatencyNanos.sum();
+    }
+
+    @Override
+    public long getMaxQueueLatencyNanos() {
+        return maxQueueLatencyNanos.get();
+    }
+
+    @Override
+    public long[] getWorkerRequests() {
+        return Arrays.stream(workerRequests).mapToLong(LongAdder::sum).toArray();
+    }
+
+    @Override
+    public long[] getWorkerBusyNanos() {
+        return Arrays.stream(workerBusyNanos).mapToLong(LongAdder::sum).toArray();
+    }
+
+    @Override
+    public long[] getWorkerQueuedBatches() {
+        long[] queued = new long[workerRequests.length];
+
+        for(int i = 0; i < queued.length; i++)
+            queued[i] = queuedBatches.applyAsLong(i);
+
+        return queued;
+    }
+
+    @Override
+    public long getSerializeNanos() {
+        return serializeNanos.sum();
+    }
+
+    @Override
+    public long getSplitMergeNanos() {
+        return splitMergeNanos.sum();
+    }
+
+    @Override
+    public long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * @return a human-readable summary of every counter
+     */
+    public String summary() {
+        long batches = getBatchesSent();
+        long[] busy = getWorkerBusyNanos();
+
+        StringBuilder workersBusy = new StringBuilder();
+        for(int i = 0; i < busy.length; i++)
+            workersBusy.append(i == 0 ? "" : ", ").append(seconds(busy[i]));
+
+        return String.format(
+                "Parsing:  %s in %d lines, %d chunks, %s of chunk time (%s per chunk, from %s to %s), " +
+                        "%s of it waiting for reads, %d lines parsed by GSON, %d errors%n" +
+                "Dispatch: %d requests in %d batches, %d waits for a full queue (%s), " +
+                        "queue latency %s on average, %s at most%n" +
+                "Workers:  %s requests, busy for [%s]%n" +
+                "Output:   %s serializing, %s merging users split by key%n" +
+                "Total:    %s",
+                megabytes(getBytesRead()), getLinesParsed(), getChunksRead(), seconds(getParseNanos()),
+                megabytesPerSecond(getBytesRead(), getParseNanos()),
+                megabytesPerSecond(getMinChunkBytesPerSecond()), megabytesPerSecond(getMaxChunkBytesPerSecond()),
+                seconds(getReadWaitNanos()), getFallbackLines(), getParseErrors(),
+                getRequestsSent(), batches, getSendWaits(), seconds(getSendBlockedNanos()),
+                milliseconds(batches == 0 ? 0 : getQueueLatencyNanos() / batches),
+                milliseconds(getMaxQueueLatencyNanos()),
+                Arrays.toString(getWorkerRequests()), workersBusy,
+                seconds(getSerializeNanos()), seconds(getSplitMergeNanos()),
+                seconds(getElapsedNanos()));
+    }
+
+    private static String seconds(long nanos) {
+        return String.format("%.3f s", nanos / 1e9);
+    }
+
+    private static String milliseconds(long nanos) {
+        return String.format("%.3f ms", nanos / 1e6);
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f MB", bytes / 1e6);
+    }
+
+    private static String megabytesPerSecond(long bytes, long nanos) {
+        return megabytesPerSecond(nanos == 0 ? 0 : bytes * 1e9 / nanos);
+    }
+
+    private static String megabytesPerSecond(double bytesPerSecond) {
+        return String.format("%.1f MB/s", bytesPerSecond / 1e6);
+    }
+}
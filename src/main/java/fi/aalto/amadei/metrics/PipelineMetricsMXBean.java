@@ -0,0 +1,49 @@
+package fi.aalto.amadei.metrics;
+
+/**
+ * Counters of every stage of the pipeline, exposed through JMX. Durations are in nanoseconds.
+ */
+public interface PipelineMetricsMXBean {
+
+    long getBytesRead();
+
+    long getLinesParsed();
+
+    long getFallbackLines();
+
+    long getParseErrors();
+
+    long getChunksRead();
+
+    long getParseNanos();
+
+    long getReadWaitNanos();
+
+    double getMinChunkBytesPerSecond();
+
+    double getMaxChunkBytesPerSecond();
+
+    long getBatchesSent();
+
+    long getRequestsSent();
+
+    long getSendWaits();
+
+    long getSendBlockedNanos();
+
+    long getQueueLatencyNanos();
+
+    long getMaxQueueLatencyNanos();
+
+    long[] getWorkerRequests();
+
+    long[] getWorkerBusyNanos();
+
+    long[] getWorkerQueuedBatches();
+
+    long getSerializeNanos();
+
+    long getSplitMergeNanos();
+
+    long getElapsedNanos();
+}
@@ -0,0 +1,219 @@
+package fi.aalto.amadei.model;
+
+import fi.aalto.amadei.utils.Instances;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores the current state of every user in flat, primitive-specialized arrays.
+ * Users are dictionary-encoded into dense int ids by an open-addressing table. Keys are encoded by the StringDictionary
+ * shared with the parsers, so key ids are the same in every storage. The state of a user is stored
+ * in three parallel arrays (key ids, timestamps and values), so no map, entry or StorageValue object is allocated for
+ * a key. Keys of a user are found with a linear scan over an int[], which is faster than hashing for the handful of
+ * keys a user usually has.
+ */
+public class CompactStateStorage implements StateStorage {
+
+    private static final int INITIAL_USERS = 16;
+    private static final int INITIAL_KEYS_PER_USER = 4;
+
+    private final StringIndex users;
+    private final StringDictionary keys;
+
+    // State of every user, indexed by user id
+    private int[][] keyIds;
+    private long[][] timestamps;
+    private String[][] values;
+    private int[] sizes;
+
+    public CompactStateStorage() {
+        this(Instances.dictionary());
+    }
+
+    /**
+     * @param keys the dictionary to encode keys with, shared by every storage merged together
+     */
+    public CompactStateStorage(StringDictionary keys) {
+        this.users = new StringIndex();
+        this.keys = keys;
+
+        this.keyIds = new int[INITIAL_USERS][];
+        this.timestamps = new long[INITIAL_USERS][];
+        this.values = new String[INITIAL_USERS][];
+        this.sizes = new int[INITIAL_USERS];
+    }
+
+    @Override
+    public Map<String, String> updateState(String user, long timestamp, Map<String, String> values) {
+        Map<String, String> changes = new HashMap<>();
+        int userId = userId(user);
+
+        for(Map.Entry<String, String> entry : values.entrySet()) {
+            if(update(userId, keys.idOf(entry.getKey()), timestamp, entry.getValue()))
+                changes.put(entry.getKey(), entry.getValue());
+        }
+
+        return changes;
+    }
+
+    @Override
+    public void applyUpdate(String user, long timestamp, Map<String, String> values) {
+        int userId = userId(user);
+
+        for(Map.Entry<String, String> entry : values.entrySet())
+            update(userId, keys.idOf(entry.getKey()), timestamp, entry.getValue());
+    }
+
+    /**
+     * Finds the id of a user, creating an empty state for them if needed
+     */
+    private int userId(String user) {
+        int userId = users.add(user);
+
+        if(userId == sizes.length) {
+            int capacity = sizes.length * 2;
+
+            keyIds = Arrays.copyOf(keyIds, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            values = Arrays.copyOf(values, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+        }
+
+        if(keyIds[userId] == null) {
+            keyIds[userId] = new int[INITIAL_KEYS_PER_USER];
+            timestamps[userId] = new long[INITIAL_KEYS_PER_USER];
+            values[userId] = new String[INITIAL_KEYS_PER_USER];
+        }
+
+        return userId;
+    }
+
+    /**
+     * Updates a single key of a user
+     * @return true if the state changed, false if the update was older than the stored value
+     */
+    private boolean update(int userId, int keyId, long timestamp, String value) {
+        int[] userKeys = keyIds[userId];
+        int size = sizes[userId];
+
+        for(int i = 0; i < size; i++) {
+            if(userKeys[i] == keyId) {
+                if(timestamps[userId][i] >= timestamp)
+                    return false;
+
+                timestamps[userId][i] = timestamp;
+                values[userId][i] = value;
+                return true;
+            }
+        }
+
+        // New key, make room for it if needed
+        if(size == userKeys.length) {
+            keyIds[userId] = Arrays.copyOf(userKeys, size * 2);
+            timestamps[userId] = Arrays.copyOf(timestamps[userId], size * 2);
+            values[userId] = Arrays.copyOf(values[userId], size * 2);
+        }
+
+        keyIds[userId][size] = keyId;
+        timestamps[userId][size] = timestamp;
+        values[userId][size] = value;
+        sizes[userId] = size + 1;
+
+        return true;
+    }
+
+    @Override
+    public Map<String, String> getState(String user) {
+        int userId = users.indexOf(user);
+
+        if(userId < 0)
+            return new HashMap<>();
+
+        return getState(userId);
+    }
+
+    private Map<String, String> getState(int userId) {
+        Map<String, String> state = new HashMap<>();
+
+        for(int i = 0; i < sizes[userId]; i++)
+            state.put(keys.get(keyIds[userId][i]), values[userId][i]);
+
+        return state;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> getStateOfAllUsers() {
+        Map<String, Map<String, String>> state = new HashMap<>();
+
+        for(int u = 0; u < users.size(); u++)
+            state.put(users.get(u), getState(u));
+
+        return state;
+    }
+
+    @Override
+    public void accept(StateVisitor visitor) {
+        for(int u = 0; u < users.size(); u++)
+            accept(u, visitor);
+    }
+
+    @Override
+    public void acceptUser(String user, StateVisitor visitor) {
+        int userId = users.indexOf(user);
+
+        if(userId >= 0)
+            accept(userId, visitor);
+    }
+
+    private void accept(int userId, StateVisitor visitor) {
+        visitor.beginUser(users.get(userId));
+
+        for(int i = 0; i < sizes[userId]; i++)
+            visitor.value(keys.get(keyIds[userId][i]), timestamps[userId][i], values[userId][i]);
+
+        visitor.endUser();
+    }
+
+    @Override
+    public void mergeWith(StateStorage stateStorage) {
+        if(!(stateStorage instanceof CompactStateStorage other))
+            throw new IllegalArgumentException("Cannot merge state storages of different types");
+
+        // Key ids of the other storage translated to key ids of this one, unless they share their dictionary
+        int[] keyMapping = null;
+        if(other.keys != keys) {
+            keyMapping = new int[other.keys.size()];
+
+            for(int k = 0; k < keyMapping.length; k++)
+                keyMapping[k] = keys.idOf(other.keys.get(k));
+        }
+
+        for(int u = 0; u < other.users.size(); u++) {
+            String user = other.users.get(u);
+
+            if(users.indexOf(user) >= 0)
+                throw new IllegalStateException("Multiple users present in different state storages");
+
+            int userId = userId(user);
+            int size = other.sizes[u];
+
+            int[] userKeys = Arrays.copyOf(other.keyIds[u], Math.max(size, 1));
+            if(keyMapping != null) {
+                for(int i = 0; i < size; i++)
+                    userKeys[i] = keyMapping[userKeys[i]];
+            }
+
+            keyIds[userId] = userKeys;
+            timestamps[userId] = Arrays.copyOf(other.timestamps[u], userKeys.length);
+            values[userId] = Arrays.copyOf(other.values[u], userKeys.length);
+            sizes[userId] = size;
+        }
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+}
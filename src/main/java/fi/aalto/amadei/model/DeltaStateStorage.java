@@ -0,0 +1,111 @@
+package fi.aalto.amadei.model;
+
+import java.util.Map;
+
+/**
+ * Wraps a State Storage, keeping track of every change made to it since the last call to takeDelta().
+ * Changes are kept in a second State Storage of the same type, holding only the keys changed and their most recent
+ * value. Tracking is off until startTracking() is called, so that loading a big initial state does not copy it.
+ */
+public class DeltaStateStorage implements StateStorage {
+
+    private final StorageType storageType;
+    private final StateStorage state;
+
+    private StateStorage delta;
+    private boolean tracking;
+
+    public DeltaStateStorage(StorageType storageType) {
+        this(storageType, RetentionPolicy.KEEP_ALL);
+    }
+
+    /**
+     * @param retention the retention policy of the wrapped storage, if it keeps a history. Changes only hold the most
+     *                  recent value of every key.
+     */
+    public DeltaStateStorage(StorageType storageType, RetentionPolicy retention) {
+        this.storageType = storageType;
+        this.state = storageType.create(retention);
+
+        this.delta = storageType.create();
+        this.tracking = false;
+    }
+
+    /**
+     * Forgets all changes made so far and keeps track of the next ones
+     */
+    public void startTracking() {
+        delta = storageType.create();
+        tracking = true;
+    }
+
+    /**
+     * Returns all changes made since the last call to this method or to startTracking(), and starts collecting new
+     * ones
+     * @return the changed keys of every changed user, with their most recent value
+     */
+    public StateStorage takeDelta() {
+        StateStorage changes = delta;
+        startTracking();
+
+        return changes;
+    }
+
+    /**
+     * @return the wrapped State Storage, holding the whole state
+     */
+    public StateStorage getStorage() {
+        return state;
+    }
+
+    @Override
+    public Map<String, String> updateState(String user, long timestamp, Map<String, String> values) {
+        Map<String, String> changes = state.updateState(user, timestamp, values);
+
+        if(tracking && !changes.isEmpty())
+            delta.applyUpdate(user, timestamp, changes);
+
+        return changes;
+    }
+
+    @Override
+    public void applyUpdate(String user, long timestamp, Map<String, String> values) {
+        if(tracking)
+            updateState(user, timestamp, values);
+        else
+            state.applyUpdate(user, timestamp, values);
+    }
+
+    @Override
+    public Map<String, String> getState(String user) {
+        return state.getState(user);
+    }
+
+    @Override
+    public Map<String, Map<String, String>> getStateOfAllUsers() {
+        return state.getStateOfAllUsers();
+    }
+
+    @Override
+    public void accept(StateVisitor visitor) {
+        state.accept(visitor);
+    }
+
+    @Override
+    public void acceptUser(String user, StateVisitor visitor) {
+        state.acceptUser(user, visitor);
+    }
+
+    @Override
+    public void mergeWith(StateStorage stateStorage) {
+        if(stateStorage instanceof DeltaStateStorage other)
+            stateStorage = other.state;
+
+        state.mergeWith(stateStorage);
+    }
+
+    @Override
+    public int size() {
+        return state.size();
+    }
+}
@@ -0,0 +1,127 @@
+package fi.aalto.amadei.model;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Stores the current state of every user in nested hash maps
+ */
+public class HashMapStateStorage implements StateStorage {
+
+    private final Map<String, Map<String, StorageValue>> map;
+    //                User        Key     Value
+
+    public HashMapStateStorage() {
+        map = new HashMap<>();
+    }
+
+    @Override
+    public Map<String, String> updateState(String user, long timestamp, Map<String, String> values) {
+        Map<String, String> changes = new HashMap<>();
+
+        // If user does not exist, create a new map for him
+        Map<String, StorageValue> state = map.computeIfAbsent(user, u -> new HashMap<>());
+
+        // For every key-value in the update
+        for(Map.Entry<String, String> entry : values.entrySet()) {
+            if(update(state, entry.getKey(), timestamp, entry.getValue()))
+                changes.put(entry.getKey(), entry.getValue());
+        }
+
+        return changes;
+    }
+
+    @Override
+    public void applyUpdate(String user, long timestamp, Map<String, String> values) {
+        Map<String, StorageValue> state = map.computeIfAbsent(user, u -> new HashMap<>());
+
+        for(Map.Entry<String, String> entry : values.entrySet())
+            update(state, entry.getKey(), timestamp, entry.getValue());
+    }
+
+    /**
+     * Updates a single key of a user
+     * @return true if the state changed, false if the update was older than the stored value
+     */
+    private static boolean update(Map<String, StorageValue> state, String key, long timestamp, String value) {
+        StorageValue current = state.get(key);
+
+        // if map didn't contain that key
+        if(current == null) {
+            state.put(key, new StorageValue(timestamp, value));
+            return true;
+        }
+
+        // if map already contained an older key
+        if(current.getTimestamp() < timestamp) {
+            current.setTimestamp(timestamp);
+            current.setValue(value);
+            return true;
+        }
+
+        return false;
+    }
+
+    @Override
+    public Map<String, String> getState(String user) {
+        return map.getOrDefault(user, Collections.emptyMap()).entrySet()
+                .stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, v -> v.getValue().getValue()));
+    }
+
+    @Override
+    public Map<String, Map<String, String>> getStateOfAllUsers() {
+        Map<String, Map<String, String>> state = new HashMap<>();
+
+        for(String u : map.keySet()) {
+            state.put(u, getState(u));
+        }
+
+        return state;
+    }
+
+    @Override
+    public void accept(StateVisitor visitor) {
+        for(Map.Entry<String, Map<String, StorageValue>> user : map.entrySet()) {
+            visitor.beginUser(user.getKey());
+
+            for(Map.Entry<String, StorageValue> entry : user.getValue().entrySet())
+                visitor.value(entry.getKey(), entry.getValue().getTimestamp(), entry.getValue().getValue());
+
+            visitor.endUser();
+        }
+    }
+
+    @Override
+    public void acceptUser(String user, StateVisitor visitor) {
+        Map<String, StorageValue> state = map.get(user);
+
+        if(state == null)
+            return;
+
+        visitor.beginUser(user);
+
+        for(Map.Entry<String, StorageValue> entry : state.entrySet())
+            visitor.value(entry.getKey(), entry.getValue().getTimestamp(), entry.getValue().getValue());
+
+        visitor.endUser();
+    }
+
+    @Override
+    public void mergeWith(StateStorage stateStorage) {
+        if(!(stateStorage instanceof HashMapStateStorage other))
+            throw new IllegalArgumentException("Cannot merge state storages of different types");
+
+        for(String k : other.map.keySet()) {
+            if(this.map.containsKey(k))
+                throw new IllegalStateException("Multiple users present in different state storages");
+
+            this.map.put(k, other.map.get(k));
+        }
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+}
@@ -0,0 +1,110 @@
+package fi.aalto.amadei.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Memory outside of the Java heap, allocated by bumping a pointer through direct ByteBuffers (segments) of a fixed size.
+ * Blocks are addressed by a long: the index of their segment in the high 32 bits and their offset in the low ones, so
+ * that a block can be found without any object pointing to it. A block never crosses the end of a segment, so that
+ * the address of any byte of a block is its address plus its position in the block.
+ * Memory is never freed block by block: the segments are released together once the arena is unreachable.
+ * Address 0 is never allocated and can be used as a null address.
+ */
+class OffHeapArena {
+
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private ByteBuffer[] segments;
+    private int nSegments;
+
+    // Offset of the first free byte of the last segment
+    private int top;
+
+    private long allocatedBytes;
+
+    OffHeapArena() {
+        this.segments = new ByteBuffer[4];
+
+        // Keep address 0 free
+        newSegment(SEGMENT_SIZE);
+        this.top = Long.BYTES;
+    }
+
+    /**
+     * Allocates a block of memory. Its content is not initialized.
+     * @param size the size of the block in bytes
+     * @return the address of the block
+     */
+    long allocate(int size) {
+        if(segments[nSegments - 1].capacity() - top < size) {
+            // Blocks bigger than a segment get a segment of their own
+            newSegment(Math.max(SEGMENT_SIZE, size));
+            top = 0;
+        }
+
+        long address = ((long) (nSegments - 1) << 32) | top;
+        top += size;
+
+        return address;
+    }
+
+    private void newSegment(int size) {
+        if(nSegments == segments.length)
+            segments = Arrays.copyOf(segments, nSegments * 2);
+
+        segments[nSegments++] = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        allocatedBytes += size;
+    }
+
+    /**
+     * @return the number of bytes of off-heap memory reserved by the arena
+     */
+    long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    int getInt(long address) {
+        return segment(address).getInt(offset(address));
+    }
+
+    void putInt(long address, int value) {
+        segment(address).putInt(offset(address), value);
+    }
+
+    long getLong(long address) {
+        return segment(address).getLong(offset(address));
+    }
+
+    void putLong(long address, long value) {
+        segment(address).putLong(offset(address), value);
+    }
+
+    byte getByte(long address) {
+        return segment(address).get(offset(address));
+    }
+
+    void getBytes(long address, byte[] destination, int length) {
+        segment(address).get(offset(address), destination, 0, length);
+    }
+
+    void putBytes(long address, byte[] source) {
+        segment(address).put(offset(address), source);
+    }
+
+    /**
+     * Copies bytes between two blocks of this arena
+     */
+    void copy(long from, long to, int length) {
+        segment(to).put(offset(to), segment(from), offset(from), length);
+    }
+
+    private ByteBuffer segment(long address) {
+        return segments[(int) (address >>> 32)];
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+}
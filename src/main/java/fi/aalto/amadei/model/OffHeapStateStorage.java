@@ -0,0 +1,434 @@
+package fi.aalto.amadei.model;
+
+import fi.aalto.amadei.utils.Instances;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores the current state of every user outside of the Java heap, so that the garbage collector never has to walk
+ * through it: heap usage and collection times stay flat whatever the number of users.
+ * Users are found through an open-addressing hash index of record addresses, itself kept in a direct buffer. Every
+ * record holds the UTF-8 name of the user and the address of a block of entries (key id, timestamp and address of
+ * the UTF-8 value), all packed in an OffHeapArena. Keys are encoded by the StringDictionary shared with the parsers,
+ * like in CompactStateStorage. A new value overwrites the previous one when it fits in its block, which is the common
+ * case for counters and short strings; otherwise a new block is allocated and the old one is lost until the storage
+ * is released.
+ * The off-heap memory available is limited by -XX:MaxDirectMemorySize, which is the maximum heap size by default.
+ */
+public class OffHeapStateStorage implements StateStorage {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int INITIAL_KEYS_PER_USER = 4;
+
+    // Layout of a user record: hash, address of the entries, length of the name, UTF-8 name
+    private static final int USER_HASH = 0;
+    private static final int USER_ENTRIES = 4;
+    private static final int USER_LENGTH = 12;
+    private static final int USER_NAME = 16;
+
+    // Layout of a block of entries: number of entries, capacity, entries
+    private static final int ENTRIES_SIZE = 0;
+    private static final int ENTRIES_CAPACITY = 4;
+    private static final int ENTRIES_FIRST = 8;
+
+    // Layout of an entry: key id, timestamp, address of the value (0 for null)
+    private static final int ENTRY_KEY = 0;
+    private static final int ENTRY_TIMESTAMP = 4;
+    private static final int ENTRY_VALUE = 12;
+    private static final int ENTRY_SIZE = 20;
+
+    // Layout of a value: capacity, length, UTF-8 bytes
+    private static final int VALUE_CAPACITY = 0;
+    private static final int VALUE_LENGTH = 4;
+    private static final int VALUE_BYTES = 8;
+
+    private final OffHeapArena arena;
+    private final StringDictionary keys;
+
+    // Address of the record of every user, 0 for empty slots
+    private ByteBuffer index;
+    private int mask;
+    private int size;
+
+    public OffHeapStateStorage() {
+        this(Instances.dictionary());
+    }
+
+    /**
+     * @param keys the dictionary to encode keys with, shared by every storage merged together
+     */
+    public OffHeapStateStorage(StringDictionary keys) {
+        this.arena = new OffHeapArena();
+        this.keys = keys;
+
+        this.index = newIndex(INITIAL_CAPACITY);
+        this.mask = INITIAL_CAPACITY - 1;
+    }
+
+    @Override
+    public Map<String, String> updateState(String user, long timestamp, Map<String, String> values) {
+        Map<String, String> changes = new HashMap<>();
+        long record = record(user);
+
+        for(Map.Entry<String, String> entry : values.entrySet()) {
+            if(update(record, keys.idOf(entry.getKey()), timestamp, entry.getValue()))
+                changes.put(entry.getKey(), entry.getValue());
+        }
+
+        return changes;
+    }
+
+    @Override
+    public void applyUpdate(String user, long timestamp, Map<String, String> values) {
+        long record = record(user);
+
+        for(Map.Entry<String, String> entry : values.entrySet())
+            update(record, keys.idOf(entry.getKey()), timestamp, entry.getValue());
+    }
+
+    /**
+     * Finds the record of a user, creating an empty one if needed
+     */
+    private long record(String user) {
+        int hash = hash(user);
+        byte[] name = isAscii(user) ? null : user.getBytes(StandardCharsets.UTF_8);
+
+        int slot = find(user, name, hash);
+        long record = index.getLong(slot * Long.BYTES);
+
+        if(record != 0)
+            return record;
+
+        if(name == null)
+            name = user.getBytes(StandardCharsets.ISO_8859_1);
+
+        record = newRecord(name, hash, INITIAL_KEYS_PER_USER);
+        index.putLong(slot * Long.BYTES, record);
+
+        if(++size * 4 > index.capacity() / Long.BYTES * 3)
+            rehash();
+
+        return record;
+    }
+
+    private long newRecord(byte[] name, int hash, int capacity) {
+        long record = arena.allocate(USER_NAME + name.length);
+        long entries = arena.allocate(ENTRIES_FIRST + capacity * ENTRY_SIZE);
+
+        arena.putInt(entries + ENTRIES_SIZE, 0);
+        arena.putInt(entries + ENTRIES_CAPACITY, capacity);
+
+        arena.putInt(record + USER_HASH, hash);
+        arena.putLong(record + USER_ENTRIES, entries);
+        arena.putInt(record + USER_LENGTH, name.length);
+        arena.putBytes(record + USER_NAME, name);
+
+        return record;
+    }
+
+    /**
+     * Finds the slot of the index holding a user, or the empty slot where it should be added
+     * @param name the UTF-8 name of the user, or null if it is ASCII and can be compared char by char
+     */
+    private int find(String user, byte[] name, int hash) {
+        for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            long record = index.getLong(slot * Long.BYTES);
+
+            if(record == 0 || (arena.getInt(record + USER_HASH) == hash && nameEquals(record, user, name)))
+                return slot;
+        }
+    }
+
+    private boolean nameEquals(long record, String user, byte[] name) {
+        int length = arena.getInt(record + USER_LENGTH);
+
+        if(name != null) {
+            if(length != name.length)
+                return false;
+
+            for(int i = 0; i < length; i++) {
+                if(arena.getByte(record + USER_NAME + i) != name[i])
+                    return false;
+            }
+
+            return true;
+        }
+
+        if(length != user.length())
+            return false;
+
+        for(int i = 0; i < length; i++) {
+            if(arena.getByte(record + USER_NAME + i) != user.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    private void rehash() {
+        ByteBuffer old = index;
+        int capacity = old.capacity() / Long.BYTES * 2;
+
+        index = newIndex(capacity);
+        mask = capacity - 1;
+
+        for(int i = 0; i < old.capacity() / Long.BYTES; i++) {
+            long record = old.getLong(i * Long.BYTES);
+            if(record == 0)
+                continue;
+
+            int slot = arena.getInt(record + USER_HASH) & mask;
+            while(index.getLong(slot * Long.BYTES) != 0)
+                slot = (slot + 1) & mask;
+
+            index.putLong(slot * Long.BYTES, record);
+        }
+    }
+
+    private static ByteBuffer newIndex(int capacity) {
+        // Direct buffers are zeroed, i.e. every slot is empty
+        return ByteBuffer.allocateDirect(capacity * Long.BYTES).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Updates a single key of a user
+     * @return true if the state changed, false if the update was older than the stored value
+     */
+    private boolean update(long record, int keyId, long timestamp, String value) {
+        long entries = arena.getLong(record + USER_ENTRIES);
+        int entryCount = arena.getInt(entries + ENTRIES_SIZE);
+
+        for(int i = 0; i < entryCount; i++) {
+            long entry = entry(entries, i);
+
+            if(arena.getInt(entry + ENTRY_KEY) == keyId) {
+                if(arena.getLong(entry + ENTRY_TIMESTAMP) >= timestamp)
+                    return false;
+
+                arena.putLong(entry + ENTRY_TIMESTAMP, timestamp);
+                arena.putLong(entry + ENTRY_VALUE, storeValue(arena.getLong(entry + ENTRY_VALUE), value));
+                return true;
+            }
+        }
+
+        add(record, keyId, timestamp, value == null ? 0 : storeValue(0, value));
+        return true;
+    }
+
+    /**
+     * Adds a new key to a user, making room for it if needed
+     */
+    private void add(long record, int keyId, long timestamp, long valueAddress) {
+        long entries = arena.getLong(record + USER_ENTRIES);
+        int entryCount = arena.getInt(entries + ENTRIES_SIZE);
+        int capacity = arena.getInt(entries + ENTRIES_CAPACITY);
+
+        if(entryCount == capacity) {
+            long grown = arena.allocate(ENTRIES_FIRST + capacity * 2 * ENTRY_SIZE);
+
+            arena.copy(entries, grown, ENTRIES_FIRST + capacity * ENTRY_SIZE);
+            arena.putInt(grown + ENTRIES_CAPACITY, capacity * 2);
+            arena.putLong(record + USER_ENTRIES, grown);
+
+            entries = grown;
+        }
+
+        long entry = entry(entries, entryCount);
+        arena.putInt(entry + ENTRY_KEY, keyId);
+        arena.putLong(entry + ENTRY_TIMESTAMP, timestamp);
+        arena.putLong(entry + ENTRY_VALUE, valueAddress);
+
+        arena.putInt(entries + ENTRIES_SIZE, entryCount + 1);
+    }
+
+    /**
+     * Writes a value, in the block of the previous one if it fits
+     * @param previous the address of the previous value, or 0
+     * @return the address of the value, 0 for null
+     */
+    private long storeValue(long previous, String value) {
+        if(value == null)
+            return 0;
+
+        return storeValue(previous, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private long storeValue(long previous, byte[] bytes) {
+        long address = previous;
+
+        if(address == 0 || arena.getInt(address + VALUE_CAPACITY) < bytes.length) {
+            address = arena.allocate(VALUE_BYTES + bytes.length);
+            arena.putInt(address + VALUE_CAPACITY, bytes.length);
+        }
+
+        arena.putInt(address + VALUE_LENGTH, bytes.length);
+        arena.putBytes(address + VALUE_BYTES, bytes);
+
+        return address;
+    }
+
+    private static long entry(long entries, int i) {
+        return entries + ENTRIES_FIRST + (long) i * ENTRY_SIZE;
+    }
+
+    @Override
+    public Map<String, String> getState(String user) {
+        long record = lookup(user);
+
+        if(record == 0)
+            return new HashMap<>();
+
+        return getState(record);
+    }
+
+    private Map<String, String> getState(long record) {
+        Map<String, String> state = new HashMap<>();
+        long entries = arena.getLong(record + USER_ENTRIES);
+
+        for(int i = 0; i < arena.getInt(entries + ENTRIES_SIZE); i++) {
+            long entry = entry(entries, i);
+            state.put(keys.get(arena.getInt(entry + ENTRY_KEY)), value(arena.getLong(entry + ENTRY_VALUE)));
+        }
+
+        return state;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> getStateOfAllUsers() {
+        Map<String, Map<String, String>> state = new HashMap<>();
+
+        for(int slot = 0; slot <= mask; slot++) {
+            long record = index.getLong(slot * Long.BYTES);
+
+            if(record != 0)
+                state.put(name(record), getState(record));
+        }
+
+        return state;
+    }
+
+    @Override
+    public void accept(StateVisitor visitor) {
+        for(int slot = 0; slot <= mask; slot++) {
+            long record = index.getLong(slot * Long.BYTES);
+
+            if(record != 0)
+                accept(record, visitor);
+        }
+    }
+
+    @Override
+    public void acceptUser(String user, StateVisitor visitor) {
+        long record = lookup(user);
+
+        if(record != 0)
+            accept(record, visitor);
+    }
+
+    private void accept(long record, StateVisitor visitor) {
+        visitor.beginUser(name(record));
+
+        long entries = arena.getLong(record + USER_ENTRIES);
+        for(int i = 0; i < arena.getInt(entries + ENTRIES_SIZE); i++) {
+            long entry = entry(entries, i);
+
+            visitor.value(keys.get(arena.getInt(entry + ENTRY_KEY)), arena.getLong(entry + ENTRY_TIMESTAMP),
+                    value(arena.getLong(entry + ENTRY_VALUE)));
+        }
+
+        visitor.endUser();
+    }
+
+    /**
+     * @return the record of a user, or 0 if the user is not stored
+     */
+    private long lookup(String user) {
+        byte[] name = isAscii(user) ? null : user.getBytes(StandardCharsets.UTF_8);
+
+        return index.getLong(find(user, name, hash(user)) * Long.BYTES);
+    }
+
+    private String name(long record) {
+        byte[] name = new byte[arena.getInt(record + USER_LENGTH)];
+        arena.getBytes(record + USER_NAME, name, name.length);
+
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private String value(long address) {
+        if(address == 0)
+            return null;
+
+        return new String(valueBytes(address), StandardCharsets.UTF_8);
+    }
+
+    private byte[] valueBytes(long address) {
+        byte[] bytes = new byte[arena.getInt(address + VALUE_LENGTH)];
+        arena.getBytes(address + VALUE_BYTES, bytes, bytes.length);
+
+        return bytes;
+    }
+
+    @Override
+    public void mergeWith(StateStorage stateStorage) {
+        if(!(stateStorage instanceof OffHeapStateStorage other))
+            throw new IllegalArgumentException("Cannot merge state storages of different types");
+
+        for(int slot = 0; slot <= other.mask; slot++) {
+            long otherRecord = other.index.getLong(slot * Long.BYTES);
+            if(otherRecord == 0)
+                continue;
+
+            String user = other.name(otherRecord);
+            if(lookup(user) != 0)
+                throw new IllegalStateException("Multiple users present in different state storages");
+
+            long record = record(user);
+            long otherEntries = other.arena.getLong(otherRecord + USER_ENTRIES);
+
+            for(int i = 0; i < other.arena.getInt(otherEntries + ENTRIES_SIZE); i++) {
+                long entry = entry(otherEntries, i);
+                long otherValue = other.arena.getLong(entry + ENTRY_VALUE);
+
+                // Key ids are the same unless the storages do not share their dictionary
+                int keyId = other.arena.getInt(entry + ENTRY_KEY);
+                if(other.keys != keys)
+                    keyId = keys.idOf(other.keys.get(keyId));
+
+                add(record, keyId, other.arena.getLong(entry + ENTRY_TIMESTAMP),
+                        otherValue == 0 ? 0 : storeValue(0, other.valueBytes(otherValue)));
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of bytes of off-heap memory reserved by the storage
+     */
+    public long getOffHeapBytes() {
+        return arena.getAllocatedBytes() + index.capacity();
+    }
+
+    private static int hash(String user) {
+        // Spread the bits of String.hashCode(), which are poorly distributed for short similar strings
+        int hash = user.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean isAscii(String string) {
+        for(int i = 0; i < string.length(); i++) {
+            if(string.charAt(i) >= 0x80)
+                return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,66 @@
+package fi.aalto.amadei.model;
+
+/**
+ * Decides which old versions of a key a VersionedStateStorage can forget, to bound the memory used by the history.
+ * A version is kept as long as it is one of the maxVersions most recent versions of its key and it is still the value
+ * of the key at some point of the last maxAge units of time before the most recent version. The most recent version
+ * of a key is always kept, so queries on the current state are never affected.
+ */
+public class RetentionPolicy {
+
+    /**
+     * Never forgets any version
+     */
+    public static final RetentionPolicy KEEP_ALL = new RetentionPolicy(0, 0);
+
+    private final int maxVersions;
+    private final long maxAge;
+
+    /**
+     * @param maxVersions the maximum number of versions kept for every key, 0 for no limit
+     * @param maxAge the maximum age of the versions kept, in the unit of the timestamps of the input and relative to
+     *               the most recent version of the same key, 0 for no limit
+     */
+    public RetentionPolicy(int maxVersions, long maxAge) {
+        if(maxVersions < 0 || maxAge < 0)
+            throw new IllegalArgumentException("Invalid retention: " + maxVersions + " versions, age " + maxAge);
+
+        this.maxVersions = maxVersions;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Computes how many of the oldest versions of a key can be forgotten
+     * @param timestamps the timestamps of the versions, in increasing order
+     * @param size the number of versions
+     * @return the number of versions to drop from the beginning of the array
+     */
+    int prunable(long[] timestamps, int size) {
+        int drop = maxVersions > 0 ? Math.max(0, size - maxVersions) : 0;
+
+        if(maxAge > 0) {
+            long cutoff = timestamps[size - 1] - maxAge;
+
+            // A version is still needed if the next one came after the cutoff: it was the value at the cutoff
+            while(drop < size - 1 && timestamps[drop + 1] <= cutoff)
+                drop++;
+        }
+
+        return drop;
+    }
+
+    public int getMaxVersions() {
+        return maxVersions;
+    }
+
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * @return true if no version is ever forgotten
+     */
+    public boolean keepsAll() {
+        return maxVersions == 0 && maxAge == 0;
+    }
+}
@@ -0,0 +1,66 @@
+package fi.aalto.amadei.model;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Applies the state it visits to a State Storage, one key at a time. Keys already stored with a more recent timestamp
+ * are kept, so states can be imported in any order.
+ */
+public class StateImporter implements StateVisitor {
+
+    private final StateStorage stateStorage;
+    private final Predicate<String> users;
+    private final Predicate<String> keys;
+
+    // Reused for every key, State Storages do not keep the maps they are given
+    private final Map<String, String> value;
+
+    private String user;
+
+    public StateImporter(StateStorage stateStorage) {
+        this(stateStorage, user -> true);
+    }
+
+    /**
+     * @param stateStorage the State Storage to import into
+     * @param users the users to import, others are skipped
+     */
+    public StateImporter(StateStorage stateStorage, Predicate<String> users) {
+        this(stateStorage, users, key -> true);
+    }
+
+    /**
+     * @param stateStorage the State Storage to import into
+     * @param users the users to import, others are skipped
+     * @param keys the keys to import, others are skipped. Users without any of them are not imported at all.
+     */
+    public StateImporter(StateStorage stateStorage, Predicate<String> users, Predicate<String> keys) {
+        this.stateStorage = stateStorage;
+        this.users = users;
+        this.keys = keys;
+        this.value = new HashMap<>(2);
+    }
+
+    @Override
+    public void beginUser(String user) {
+        this.user = users.test(user) ? user : null;
+    }
+
+    @Override
+    public void value(String key, long timestamp, String value) {
+        if(user == null || !keys.test(key))
+            return;
+
+        this.value.clear();
+        this.value.put(key, value);
+
+        stateStorage.applyUpdate(user, timestamp, this.value);
+    }
+
+    @Override
+    public void endUser() {
+        user = null;
+    }
+}
@@ -1,19 +1,13 @@
 package fi.aalto.amadei.model;
 
-import java.util.*;
-import java.util.stream.Collectors;
+import java.util.Map;
 
 /**
- * Stores the current state of every user
+ * Stores the current state of every user.
+ * For every key of a user only the value with the most recent timestamp is kept.
+ * Implementations are not thread safe: every compute worker owns its own instance.
  */
-public class StateStorage {
-
-    private final Map<String, Map<String, StorageValue>> map;
-    //                User        Key     Value
-
-    public StateStorage() {
-        map = new HashMap<>();
-    }
+public interface StateStorage {
 
     /**
      * Updates the current state of a user and returns all changes
@@ -22,58 +16,50 @@ public class StateStorage {
      * @param values the new state
      * @return a map containing all key and values changed during the update
      */
-    public Map<String, String> updateState(String user, long timestamp, Map<String, String> values) {
-        Map<String, String> changes = new HashMap<>();
-
-        // If user does not exist, create a new map for him
-        if(!map.containsKey(user)) {
-            map.put(user, new HashMap<>());
-        }
-
-        // For every key-value in the update
-        for(String k : values.keySet()) {
-
-            // if map already contained an older key        or
-            // if map didn't contain that key
-            if((map.get(user).containsKey(k) && map.get(user).get(k).getTimestamp() < timestamp) || !map.get(user).containsKey(k)) {
-                // Update the state
-                map.get(user).put(k, new StorageValue(timestamp, values.get(k)));
-
-                // Add it to changes
-                changes.put(k, values.get(k));
-            }
-        }
+    Map<String, String> updateState(String user, long timestamp, Map<String, String> values);
 
-        return changes;
-    }
+    /**
+     * Updates the current state of a user, like updateState(), without keeping track of the changes
+     * @param user the user whose state is updated
+     * @param timestamp the timestamp of the update
+     * @param values the new state
+     */
+    void applyUpdate(String user, long timestamp, Map<String, String> values);
 
     /**
      * Get the state of a user
      * @param user the user to get the state of
      * @return the state of the user
      */
-    public Map<String, String> getState(String user) {
-        return map.getOrDefault(user, Collections.emptyMap()).entrySet()
-                .stream()
-                .collect(Collectors.toMap(Map.Entry::getKey, v -> v.getValue().getValue()));
-    }
+    Map<String, String> getState(String user);
 
-    public Map<String, Map<String, String>> getStateOfAllUsers() {
-        Map<String, Map<String, String>> state = new HashMap<>();
+    /**
+     * Get the state of every user
+     * @return a map from every user to their state
+     */
+    Map<String, Map<String, String>> getStateOfAllUsers();
 
-        for(String u : map.keySet()) {
-            state.put(u, getState(u));
-        }
+    /**
+     * Walks through the state of every user
+     * @param visitor the visitor receiving the state
+     */
+    void accept(StateVisitor visitor);
 
-        return state;
-    }
+    /**
+     * Walks through the state of a single user. Nothing is visited if the user is not stored.
+     * @param user the user
+     * @param visitor the visitor receiving the state
+     */
+    void acceptUser(String user, StateVisitor visitor);
 
-    public void mergeWith(StateStorage stateStorage) {
-        for(String k : stateStorage.map.keySet()) {
-            if(this.map.containsKey(k))
-                throw new IllegalStateException("Multiple users present in different state storages");
+    /**
+     * Moves all users of another state storage of the same type into this one
+     * @param stateStorage the state storage to merge. Must not contain any user of this one.
+     */
+    void mergeWith(StateStorage stateStorage);
 
-            this.map.put(k, stateStorage.map.get(k));
-        }
-    }
+    /**
+     * @return the number of users stored
+     */
+    int size();
 }
@@ -0,0 +1,27 @@
+package fi.aalto.amadei.model;
+
+/**
+ * Receives the content of a State Storage one user at a time, without any intermediate collection being built.
+ * For every user, beginUser() is called first, then value() once for every key and finally endUser().
+ */
+public interface StateVisitor {
+
+    /**
+     * Called before the values of a user
+     * @param user the user
+     */
+    void beginUser(String user);
+
+    /**
+     * Called for every key of the current user
+     * @param key the key
+     * @param timestamp the timestamp of the update the value comes from
+     * @param value the value
+     */
+    void value(String key, long timestamp, String value);
+
+    /**
+     * Called after the values of a user
+     */
+    void endUser();
+}
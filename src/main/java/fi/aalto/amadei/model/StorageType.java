@@ -0,0 +1,58 @@
+package fi.aalto.amadei.model;
+
+import java.util.function.Function;
+
+/**
+ * Available State Storage implementations
+ */
+public enum StorageType {
+
+    /**
+     * Nested hash maps, see HashMapStateStorage
+     */
+    HASHMAP(retention -> new HashMapStateStorage()),
+
+    /**
+     * Dictionary-encoded primitive arrays, see CompactStateStorage
+     */
+    COMPACT(retention -> new CompactStateStorage()),
+
+    /**
+     * Hash index and packed records outside of the Java heap, see OffHeapStateStorage
+     */
+    OFFHEAP(retention -> new OffHeapStateStorage()),
+
+    /**
+     * Every version of every key, for point-in-time queries, see VersionedStateStorage
+     */
+    VERSIONED(VersionedStateStorage::new);
+
+    private final Function<RetentionPolicy, StateStorage> factory;
+
+    StorageType(Function<RetentionPolicy, StateStorage> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @return true if the storage keeps the versions older than the current value of a key, which must then never be
+     * dropped before reaching it, e.g. by a StalenessFilter
+     */
+    public boolean keepsHistory() {
+        return this == VERSIONED;
+    }
+
+    /**
+     * @return a new empty State Storage of this type, never forgetting any version if it keeps a history
+     */
+    public StateStorage create() {
+        return create(RetentionPolicy.KEEP_ALL);
+    }
+
+    /**
+     * @param retention the policy deciding which old versions are forgotten, ignored if the storage keeps no history
+     * @return a new empty State Storage of this type
+     */
+    public StateStorage create(RetentionPolicy retention) {
+        return factory.apply(retention);
+    }
+}
@@ -0,0 +1,209 @@
+package fi.aalto.amadei.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe dictionary assigning a dense int id to every distinct String added to it, starting from 0, and keeping a
+ * single canonical instance of it.
+ * Parsing threads intern keys straight from the bytes of the input, so a key already seen costs a lookup instead of a
+ * new String, and every copy of it in the state is the same instance: its hash code is computed once and equality
+ * checks stop at the reference comparison. Users are not interned, since Strings are never removed: the dictionary
+ * would keep every user ever seen, even once the state forgot it.
+ * Lookups never lock: the table is an open-addressing table of immutable entries, replaced as a whole when it grows.
+ * Only adding a String takes a lock, and a lookup missing an entry added concurrently retries under the lock.
+ * Strings are never removed.
+ */
+public class StringDictionary {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private record Entry(String string, int hash, int id) {}
+
+    // Slots of the open-addressing table, null meaning empty
+    private volatile AtomicReferenceArray<Entry> table;
+
+    // Strings indexed by id
+    private volatile String[] strings;
+    private volatile int size;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public StringDictionary() {
+        this.table = new AtomicReferenceArray<>(INITIAL_CAPACITY * 2);
+        this.strings = new String[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Finds the canonical instance of a String, adding it if it was never added
+     * @param string the String to look for
+     * @return the canonical instance, equal to the given String
+     */
+    public String intern(String string) {
+        return entry(string).string;
+    }
+
+    /**
+     * Finds the id of a String, adding it if it was never added
+     * @param string the String to look for
+     * @return the id of the String
+     */
+    public int idOf(String string) {
+        return entry(string).id;
+    }
+
+    /**
+     * Finds the canonical instance of the String encoded by a range of UTF-8 bytes, adding it if it was never added.
+     * No String is created if it was already added and the bytes are ASCII.
+     * @param data the array containing the bytes
+     * @param start the index of the first byte
+     * @param end the index after the last byte
+     * @return the canonical instance
+     */
+    public String intern(byte[] data, int start, int end) {
+        int hash = 0;
+
+        for(int i = start; i < end; i++) {
+            // Non-ASCII characters do not map to a single byte, the String is needed to hash them
+            if(data[i] < 0)
+                return intern(new String(data, start, end - start, StandardCharsets.UTF_8));
+
+            hash = 31 * hash + data[i];
+        }
+
+        hash = mix(hash);
+
+        AtomicReferenceArray<Entry> slots = table;
+        int mask = slots.length() - 1;
+
+        for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            Entry entry = slots.get(slot);
+
+            if(entry == null)
+                return intern(new String(data, start, end - start, StandardCharsets.ISO_8859_1));
+
+            if(entry.hash == hash && equals(entry.string, data, start, end))
+                return entry.string;
+        }
+    }
+
+    /**
+     * @param id the id of a String
+     * @return the String with the given id
+     */
+    public String get(int id) {
+        return strings[id];
+    }
+
+    /**
+     * @return the number of Strings added
+     */
+    public int size() {
+        return size;
+    }
+
+    private Entry entry(String string) {
+        int hash = mix(string.hashCode());
+
+        Entry entry = find(table, string, hash);
+        if(entry != null)
+            return entry;
+
+        lock.lock();
+
+        try {
+            // Added by another thread since the lookup, or moved to a bigger table
+            AtomicReferenceArray<Entry> slots = table;
+
+            entry = find(slots, string, hash);
+            if(entry != null)
+                return entry;
+
+            return add(slots, string, hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Entry find(AtomicReferenceArray<Entry> slots, String string, int hash) {
+        int mask = slots.length() - 1;
+
+        for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            Entry entry = slots.get(slot);
+
+            if(entry == null)
+                return null;
+
+            if(entry.hash == hash && entry.string.equals(string))
+                return entry;
+        }
+    }
+
+    // Must be called while holding the lock
+    private Entry add(AtomicReferenceArray<Entry> slots, String string, int hash) {
+        int id = size;
+
+        if(id == strings.length)
+            strings = Arrays.copyOf(strings, id * 2);
+
+        // The String must be readable by id before its entry can be found
+        strings[id] = string;
+        size = id + 1;
+
+        Entry entry = new Entry(string, hash, id);
+
+        // Keep the load factor under 0.5. Readers still using the old table retry under the lock.
+        if(size * 2 > slots.length()) {
+            slots = rehash(slots);
+            insert(slots, entry);
+            table = slots;
+        } else {
+            insert(slots, entry);
+        }
+
+        return entry;
+    }
+
+    private static AtomicReferenceArray<Entry> rehash(AtomicReferenceArray<Entry> slots) {
+        AtomicReferenceArray<Entry> bigger = new AtomicReferenceArray<>(slots.length() * 2);
+
+        for(int i = 0; i < slots.length(); i++) {
+            Entry entry = slots.get(i);
+
+            if(entry != null)
+                insert(bigger, entry);
+        }
+
+        return bigger;
+    }
+
+    private static void insert(AtomicReferenceArray<Entry> slots, Entry entry) {
+        int mask = slots.length() - 1;
+        int slot = entry.hash & mask;
+
+        while(slots.get(slot) != null)
+            slot = (slot + 1) & mask;
+
+        slots.set(slot, entry);
+    }
+
+    private static boolean equals(String string, byte[] data, int start, int end) {
+        if(string.length() != end - start)
+            return false;
+
+        for(int i = 0; i < string.length(); i++) {
+            if(string.charAt(i) != data[start + i])
+                return false;
+        }
+
+        return true;
+    }
+
+    // Spreads the bits of String.hashCode(), which are poorly distributed for short similar strings
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,114 @@
+package fi.aalto.amadei.model;
+
+import java.util.Arrays;
+
+/**
+ * Assigns a dense int id to every distinct String added to it, starting from 0.
+ * Uses open addressing with linear probing over a plain int[] table, so lookups don't allocate and entries don't need
+ * any node object. Not thread safe.
+ */
+class StringIndex {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Strings and their hashes, indexed by id
+    private String[] strings;
+    private int[] hashes;
+
+    // Slot -> id + 1, 0 meaning empty
+    private int[] table;
+    private int mask;
+
+    private int size;
+
+    StringIndex() {
+        this.strings = new String[INITIAL_CAPACITY];
+        this.hashes = new int[INITIAL_CAPACITY];
+        this.table = new int[INITIAL_CAPACITY * 2];
+        this.mask = table.length - 1;
+    }
+
+    /**
+     * Finds the id of a String
+     * @param string the String to look for
+     * @return the id of the String, or -1 if it was never added
+     */
+    int indexOf(String string) {
+        int hash = mix(string.hashCode());
+
+        for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+
+            if(id < 0)
+                return -1;
+
+            if(hashes[id] == hash && strings[id].equals(string))
+                return id;
+        }
+    }
+
+    /**
+     * Finds the id of a String, adding it if it was never added
+     * @param string the String to look for
+     * @return the id of the String
+     */
+    int add(String string) {
+        int hash = mix(string.hashCode());
+
+        int slot = hash & mask;
+        for(; ; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+
+            if(id < 0)
+                break;
+
+            if(hashes[id] == hash && strings[id].equals(string))
+                return id;
+        }
+
+        // Not found, use the empty slot
+        if(size == strings.length) {
+            strings = Arrays.copyOf(strings, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+
+        int id = size++;
+        strings[id] = string;
+        hashes[id] = hash;
+        table[slot] = id + 1;
+
+        // Keep the load factor under 0.5
+        if(size * 2 > table.length)
+            rehash(table.length * 2);
+
+        return id;
+    }
+
+    String get(int id) {
+        return strings[id];
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        mask = capacity - 1;
+
+        for(int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+
+            while(table[slot] != 0)
+                slot = (slot + 1) & mask;
+
+            table[slot] = id + 1;
+        }
+    }
+
+    // Spreads the bits of String.hashCode(), which are poorly distributed for short similar strings
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,311 @@
+package fi.aalto.amadei.model;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Stores every version of every key of a user, not only the most recent one, so that the state can be queried as it
+ * was at any point in time.
+ * The versions of a key are kept in a chain of two parallel arrays (timestamps and values) ordered by timestamp: the
+ * current value is the last one and is found without searching, older values are found with a binary search. Updates
+ * older than the current value are inserted into the chain at their place instead of being discarded, so the history
+ * is exact whatever the order of the input. Like other storages, of two versions with the same timestamp the first
+ * one is kept. Old versions are forgotten according to a RetentionPolicy: every key then remembers since when its
+ * history is complete, and queries on an earlier point in time fail rather than answer as if the key had no value.
+ * The current state is visited like in any other storage: snapshots, deltas and the result only hold current values.
+ * A state loaded from a snapshot therefore has no history before the current value of every key, see truncateHistory().
+ */
+public class VersionedStateStorage implements StateStorage {
+
+    private final Map<String, Map<String, VersionChain>> map;
+    //                User        Key     Versions
+
+    private final RetentionPolicy retention;
+
+    public VersionedStateStorage() {
+        this(RetentionPolicy.KEEP_ALL);
+    }
+
+    /**
+     * @param retention the policy deciding which old versions are forgotten
+     */
+    public VersionedStateStorage(RetentionPolicy retention) {
+        this.map = new HashMap<>();
+        this.retention = retention;
+    }
+
+    @Override
+    public Map<String, String> updateState(String user, long timestamp, Map<String, String> values) {
+        Map<String, String> changes = new HashMap<>();
+        Map<String, VersionChain> state = map.computeIfAbsent(user, u -> new HashMap<>());
+
+        for(Map.Entry<String, String> entry : values.entrySet()) {
+            if(update(state, entry.getKey(), timestamp, entry.getValue()))
+                changes.put(entry.getKey(), entry.getValue());
+        }
+
+        return changes;
+    }
+
+    @Override
+    public void applyUpdate(String user, long timestamp, Map<String, String> values) {
+        Map<String, VersionChain> state = map.computeIfAbsent(user, u -> new HashMap<>());
+
+        for(Map.Entry<String, String> entry : values.entrySet())
+            update(state, entry.getKey(), timestamp, entry.getValue());
+    }
+
+    /**
+     * Adds a version of a single key of a user
+     * @return true if the current value changed, false if the version is older or was already known
+     */
+    private boolean update(Map<String, VersionChain> state, String key, long timestamp, String value) {
+        VersionChain versions = state.get(key);
+
+        if(versions == null) {
+            state.put(key, new VersionChain(timestamp, value));
+            return true;
+        }
+
+        return versions.add(timestamp, value, retention);
+    }
+
+    @Override
+    public Map<String, String> getState(String user) {
+        Map<String, VersionChain> state = map.get(user);
+        if(state == null)
+            return Collections.emptyMap();
+
+        Map<String, String> current = new HashMap<>();
+        for(Map.Entry<String, VersionChain> entry : state.entrySet())
+            current.put(entry.getKey(), entry.getValue().currentValue());
+
+        return current;
+    }
+
+    @Override
+    public Map<String, Map<String, String>> getStateOfAllUsers() {
+        Map<String, Map<String, String>> state = new HashMap<>();
+
+        for(String u : map.keySet()) {
+            state.put(u, getState(u));
+        }
+
+        return state;
+    }
+
+    @Override
+    public void accept(StateVisitor visitor) {
+        acceptVersions(user -> true, key -> true, Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+    }
+
+    @Override
+    public void acceptUser(String user, StateVisitor visitor) {
+        acceptUserVersions(user, key -> true, Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Walks through the state of every user as it was at a point in time, keeping only the keys changed after
+     * another one. Users without any such key are not visited.
+     * Only the history of the users and keys visited must be known: others are skipped before it is checked.
+     * @param users the users to visit, others are skipped
+     * @param keys the keys to visit, others are skipped
+     * @param changedAfter only keys whose value at asOf was set after this timestamp are visited, Long.MIN_VALUE for
+     *                     every key
+     * @param asOf the timestamp the state is taken at, included. Long.MAX_VALUE for the current state
+     * @param visitor the visitor receiving the state
+     * @throws IllegalStateException if the history of a visited key at asOf or at changedAfter is not known, because
+     * it was forgotten or the state was loaded from a snapshot
+     */
+    public void acceptVersions(Predicate<String> users, Predicate<String> keys, long changedAfter, long asOf,
+                               StateVisitor visitor) {
+        for(Map.Entry<String, Map<String, VersionChain>> user : map.entrySet()) {
+            if(users.test(user.getKey()))
+                visitUser(user.getKey(), user.getValue(), keys, changedAfter, asOf, visitor);
+        }
+    }
+
+    /**
+     * Walks through the state of a single user as it was at a point in time, like acceptVersions()
+     * @param user the user
+     */
+    public void acceptUserVersions(String user, Predicate<String> keys, long changedAfter, long asOf,
+                                   StateVisitor visitor) {
+        Map<String, VersionChain> state = map.get(user);
+
+        if(state != null)
+            visitUser(user, state, keys, changedAfter, asOf, visitor);
+    }
+
+    private static void visitUser(String user, Map<String, VersionChain> state, Predicate<String> keys,
+                                  long changedAfter, long asOf, StateVisitor visitor) {
+        boolean visited = false;
+
+        for(Map.Entry<String, VersionChain> entry : state.entrySet()) {
+            if(!keys.test(entry.getKey()))
+                continue;
+
+            VersionChain versions = entry.getValue();
+
+            // An unknown value must not look like a missing one
+            long needed = changedAfter != Long.MIN_VALUE ? Math.min(changedAfter, asOf) : asOf;
+            if(needed < versions.knownSince)
+                throw new IllegalStateException("History of key " + entry.getKey() + " of user " + user +
+                        " is only known since " + versions.knownSince);
+
+            int version = versions.indexAt(asOf);
+
+            if(version < 0 || versions.timestamps[version] <= changedAfter)
+                continue;
+
+            if(!visited) {
+                visitor.beginUser(user);
+                visited = true;
+            }
+
+            visitor.value(entry.getKey(), versions.timestamps[version], versions.values[version]);
+        }
+
+        if(visited)
+            visitor.endUser();
+    }
+
+    @Override
+    public void mergeWith(StateStorage stateStorage) {
+        if(!(stateStorage instanceof VersionedStateStorage other))
+            throw new IllegalArgumentException("Cannot merge state storages of different types");
+
+        for(String k : other.map.keySet()) {
+            if(this.map.containsKey(k))
+                throw new IllegalStateException("Multiple users present in different state storages");
+
+            this.map.put(k, other.map.get(k));
+        }
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Forgets every version but the current one of every key, and the history before it. Used once the state is
+     * loaded from a snapshot, which only holds current values: earlier values are then unknown, not missing.
+     */
+    public void truncateHistory() {
+        for(Map<String, VersionChain> state : map.values()) {
+            for(VersionChain versions : state.values())
+                versions.truncate();
+        }
+    }
+
+    /**
+     * The versions of a key, ordered by timestamp
+     */
+    private static final class VersionChain {
+
+        private long[] timestamps;
+        private String[] values;
+        private int size;
+
+        // The value of the key is known at any point in time from this one on
+        private long knownSince;
+
+        VersionChain(long timestamp, String value) {
+            this.timestamps = new long[] { timestamp };
+            this.values = new String[] { value };
+            this.size = 1;
+            this.knownSince = Long.MIN_VALUE;
+        }
+
+        /**
+         * Adds a version at its place, then forgets the versions the retention policy allows to
+         * @return true if the version is the new current value
+         */
+        boolean add(long timestamp, String value, RetentionPolicy retention) {
+            int index;
+
+            // Most updates are newer than every version already stored
+            if(timestamp > timestamps[size - 1]) {
+                index = size;
+            } else if(timestamp < knownSince) {
+                // Versions around it were forgotten, it would not make the history before knownSince complete
+                return false;
+            } else {
+                index = Arrays.binarySearch(timestamps, 0, size, timestamp);
+
+                // The first version with a timestamp is kept
+                if(index >= 0)
+                    return false;
+
+                index = -index - 1;
+            }
+
+            if(size == timestamps.length) {
+                int capacity = size + Math.max(1, size >> 1);
+
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+
+            System.arraycopy(timestamps, index, timestamps, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            timestamps[index] = timestamp;
+            values[index] = value;
+            size++;
+
+            boolean current = index == size - 1;
+
+            if(!retention.keepsAll())
+                drop(retention.prunable(timestamps, size));
+
+            return current;
+        }
+
+        /**
+         * Forgets the oldest versions
+         * @param count the number of versions to forget
+         */
+        private void drop(int count) {
+            if(count == 0)
+                return;
+
+            size -= count;
+            System.arraycopy(timestamps, count, timestamps, 0, size);
+            System.arraycopy(values, count, values, 0, size);
+            Arrays.fill(values, size, size + count, null);
+
+            knownSince = timestamps[0];
+        }
+
+        /**
+         * Forgets every version but the current one, and that anything is known before it
+         */
+        void truncate() {
+            drop(size - 1);
+            knownSince = timestamps[0];
+        }
+
+        /**
+         * Finds the version that was the value of the key at a point in time
+         * @param timestamp the point in time, included
+         * @return the index of the most recent version not after the timestamp, or -1 if the key had no value yet.
+         * Only meaningful from knownSince on.
+         */
+        int indexAt(long timestamp) {
+            if(timestamp >= timestamps[size - 1])
+                return size - 1;
+
+            int index = Arrays.binarySearch(timestamps, 0, size, timestamp);
+
+            return index >= 0 ? index : -index - 2;
+        }
+
+        String currentValue() {
+            return values[size - 1];
+        }
+    }
+}
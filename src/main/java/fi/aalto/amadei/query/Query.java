@@ -0,0 +1,182 @@
+package fi.aalto.amadei.query;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A query over the state of the users, written as a single line:
+ * get [user] [key ...]
+ * prefix [prefix] [key ...]
+ * range [from] [to] [key ...]
+ * A range contains the users from 'from' included to 'to' excluded, in lexicographic order. Keys, if given, project
+ * the state of the users on those keys only.
+ * With a versioned storage, any query can be prefixed to look at the history instead of the current state:
+ * asof [timestamp] ... takes the state as it was at a timestamp, included
+ * diff [from] [to] ... takes the keys whose value changed after 'from' and until 'to' included, with their value at 'to'
+ */
+public class Query {
+
+    public enum Type {
+        /**
+         * A single user
+         */
+        GET,
+
+        /**
+         * Every user starting with a prefix
+         */
+        PREFIX,
+
+        /**
+         * Every user between two bounds
+         */
+        RANGE
+    }
+
+    private final Type type;
+    private final String from;
+    private final String to;
+    private final Set<String> keys;
+    private final long changedAfter;
+    private final long asOf;
+
+    /**
+     * @param type the type of the query
+     * @param from the user (GET), the prefix (PREFIX) or the lower bound (RANGE)
+     * @param to the upper bound (RANGE), null otherwise
+     * @param keys the keys to keep, or null to keep every key
+     */
+    public Query(Type type, String from, String to, Set<String> keys) {
+        this(type, from, to, keys, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param changedAfter only keys whose value at asOf was set after this timestamp match, Long.MIN_VALUE for every
+     *                     key
+     * @param asOf the timestamp the state is taken at, Long.MAX_VALUE for the current state
+     */
+    public Query(Type type, String from, String to, Set<String> keys, long changedAfter, long asOf) {
+        this.type = type;
+        this.from = from;
+        this.to = to;
+        this.keys = keys;
+        this.changedAfter = changedAfter;
+        this.asOf = asOf;
+    }
+
+    /**
+     * Parses a query line. Tokens are separated by whitespace.
+     * @param line the line
+     * @return the query
+     * @throws IllegalArgumentException if the line is not a valid query
+     */
+    public static Query parse(String line) {
+        String[] tokens = line.trim().split("\\s+");
+
+        long changedAfter = Long.MIN_VALUE;
+        long asOf = Long.MAX_VALUE;
+        int first = 0;
+
+        switch(tokens[0].toLowerCase()) {
+            case "asof" -> {
+                asOf = timestamp(tokens, 1, "asof [timestamp] [query]");
+                first = 2;
+            }
+            case "diff" -> {
+                changedAfter = timestamp(tokens, 1, "diff [from] [to] [query]");
+                asOf = timestamp(tokens, 2, "diff [from] [to] [query]");
+                first = 3;
+
+                if(changedAfter > asOf)
+                    throw new IllegalArgumentException("Diff from " + changedAfter + " to an earlier " + asOf);
+            }
+        }
+
+        if(first > 0)
+            tokens = Arrays.copyOfRange(tokens, first, tokens.length);
+
+        if(tokens.length == 0)
+            throw new IllegalArgumentException("Missing query after " + line.trim());
+
+        Type type = switch(tokens[0].toLowerCase()) {
+            case "get" -> Type.GET;
+            case "prefix" -> Type.PREFIX;
+            case "range" -> Type.RANGE;
+            default -> throw new IllegalArgumentException("Unknown query: " + tokens[0]);
+        };
+
+        int bounds = type == Type.RANGE ? 2 : 1;
+        if(tokens.length < 1 + bounds)
+            throw new IllegalArgumentException("Usage: " + usage(type));
+
+        Set<String> keys = tokens.length > 1 + bounds
+                ? new HashSet<>(Arrays.asList(tokens).subList(1 + bounds, tokens.length))
+                : null;
+
+        return new Query(type, tokens[1], type == Type.RANGE ? tokens[2] : null, keys, changedAfter, asOf);
+    }
+
+    private static long timestamp(String[] tokens, int index, String usage) {
+        if(tokens.length <= index)
+            throw new IllegalArgumentException("Usage: " + usage);
+
+        try {
+            return Long.parseLong(tokens[index]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid timestamp: " + tokens[index]);
+        }
+    }
+
+    private static String usage(Type type) {
+        return switch(type) {
+            case GET -> "get [user] [key ...]";
+            case PREFIX -> "prefix [prefix] [key ...]";
+            case RANGE -> "range [from] [to] [key ...]";
+        };
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the user of a GET query
+     */
+    public String getUser() {
+        return from;
+    }
+
+    /**
+     * @return the timestamp keys must have changed after to match, Long.MIN_VALUE if any key matches
+     */
+    public long getChangedAfter() {
+        return changedAfter;
+    }
+
+    /**
+     * @return the timestamp the state is taken at, Long.MAX_VALUE for the current state
+     */
+    public long getAsOf() {
+        return asOf;
+    }
+
+    /**
+     * @return true if the query looks at the history rather than at the current state only
+     */
+    public boolean isHistorical() {
+        return changedAfter != Long.MIN_VALUE || asOf != Long.MAX_VALUE;
+    }
+
+    public boolean matchesUser(String user) {
+        return switch(type) {
+            case GET -> user.equals(from);
+            case PREFIX -> user.startsWith(from);
+            case RANGE -> user.compareTo(from) >= 0 && user.compareTo(to) < 0;
+        };
+    }
+
+    public boolean matchesKey(String key) {
+        return keys == null || keys.contains(key);
+    }
+}
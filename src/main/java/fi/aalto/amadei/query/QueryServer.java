@@ -0,0 +1,145 @@
+package fi.aalto.amadei.query;
+
+import fi.aalto.amadei.computing.ComputeController;
+import fi.aalto.amadei.io.JsonStateWriter;
+import fi.aalto.amadei.model.StateStorage;
+import fi.aalto.amadei.utils.Instances;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Answers queries over the state kept by the workers, one query per line, from a reader or from clients connecting
+ * to a local port. Every answer is a single line: a JSON object with the matching state, like the full result but
+ * limited to the matching users and keys, or {"error":"..."} if the query is not valid.
+ * A client stops being served when it sends 'stop' or closes its input.
+ */
+public class QueryServer {
+
+    private final ComputeController computeController;
+
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+
+    public QueryServer(ComputeController computeController) {
+        this.computeController = computeController;
+    }
+
+    /**
+     * Answers the queries read from a reader until it is closed or 'stop' is read
+     * @param input the reader to read queries from
+     * @param output the channel to write answers to
+     * @return true if 'stop' was read, false if the reader was closed
+     */
+    public boolean serve(BufferedReader input, WritableByteChannel output) throws IOException, InterruptedException {
+        JsonStateWriter writer = new JsonStateWriter(output);
+        String line;
+
+        while((line = input.readLine()) != null) {
+            if(line.isBlank())
+                continue;
+
+            if(line.trim().equals("stop"))
+                return true;
+
+            StateStorage result;
+            try {
+                result = computeController.query(Query.parse(line));
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                writeError(output, e.getMessage());
+                continue;
+            }
+
+            writer.write(result);
+        }
+
+        return false;
+    }
+
+    /**
+     * Starts accepting clients on a port of the loopback interface. Every client is served by its own thread.
+     * @param port the port, or 0 to choose a free one
+     * @return the port clients can connect to
+     */
+    public synchronized int listen(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+
+        acceptor = new Thread(this::accept, "query-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Waits until the server is closed
+     */
+    public void join() throws InterruptedException {
+        Thread acceptor;
+        synchronized(this) {
+            acceptor = this.acceptor;
+        }
+
+        if(acceptor != null)
+            acceptor.join();
+    }
+
+    /**
+     * Stops accepting clients. Clients already connected are not interrupted.
+     */
+    public synchronized void close() {
+        if(serverSocket == null)
+            return;
+
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.err.println("Unable to close query server: " + e.getMessage());
+        }
+    }
+
+    private void accept() {
+        while(!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                // Closed
+                return;
+            }
+
+            Thread client = new Thread(() -> serveClient(socket), "query-client");
+            client.setDaemon(true);
+            client.start();
+        }
+    }
+
+    private void serveClient(Socket socket) {
+        try(socket;
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8))) {
+            serve(input, Channels.newChannel(socket.getOutputStream()));
+        } catch (IOException e) {
+            System.err.println("Query client disconnected: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeError(WritableByteChannel output, String message) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((Instances.gson().toJson(Map.of("error", message)) + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+
+        while(buffer.hasRemaining())
+            output.write(buffer);
+    }
+}
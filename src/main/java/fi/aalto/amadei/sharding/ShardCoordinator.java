@@ -0,0 +1,235 @@
+package fi.aalto.amadei.sharding;
+
+import fi.aalto.amadei.App;
+import fi.aalto.amadei.io.ScanningMode;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the application as several processes on the local machine, each one owning a range of user hashes (a shard),
+ * and merges their results. Every process has its own heap and garbage collector, and only holds the state of its own
+ * users, so that the whole state can be bigger than what a single heap handles well.
+ * Every shard reads the whole input and drops the requests of the users it does not own before they reach its
+ * computing threads. Since shards never share a user, their results are disjoint JSON objects: they are merged by
+ * concatenating their members, copying the files written by the shards straight to the output. Only the braces around
+ * the members are located, skipping whitespace, so that the merge does not depend on how a shard lays out its result.
+ */
+public class ShardCoordinator {
+
+    // Size of the blocks read while looking for the braces of a result
+    private static final int SCAN_BLOCK_SIZE = 4096;
+
+    private final int nShards;
+    private final List<String> javaOptions;
+    private final List<String> arguments;
+
+    /**
+     * @param nShards the number of processes to run
+     * @param javaOptions the options of the JVM of every process, e.g. its maximum heap size
+     * @param arguments the arguments of every process, without the shard and the output file
+     */
+    public ShardCoordinator(int nShards, List<String> javaOptions, List<String> arguments) {
+        this.nShards = nShards;
+        this.javaOptions = javaOptions;
+        this.arguments = arguments;
+    }
+
+    /**
+     * Runs every shard at the same time, waits for all of them and writes the merged result
+     * @param output the channel to write the result to
+     * @throws IOException if a shard cannot be started or fails. Nothing is written in that case.
+     */
+    public void run(WritableByteChannel output) throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("supercell-shards");
+        List<Process> processes = new ArrayList<>(nShards);
+
+        try {
+            for(int i = 0; i < nShards; i++)
+                processes.add(start(i, directory));
+
+            // Wait for every shard before reporting a failure, so that all their errors are printed
+            List<String> failures = new ArrayList<>();
+            for(int i = 0; i < nShards; i++) {
+                int exitCode = processes.get(i).waitFor();
+
+                if(exitCode != 0) {
+                    String log = Files.readString(logFile(directory, i)).trim();
+                    failures.add("shard " + i + " exited with code " + exitCode + (log.isEmpty() ? "" : ": " + log));
+                }
+            }
+
+            if(!failures.isEmpty())
+                throw new IOException(String.join(", ", failures));
+
+            merge(directory, output);
+        } finally {
+            for(Process process : processes)
+                process.destroyForcibly();
+
+            delete(directory);
+        }
+    }
+
+    private Process start(int shard, Path directory) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(javaOptions);
+
+        // Shards scan their input like this process does
+        if(ScanningMode.VECTOR.isAvailable())
+            command.add("--add-modules=jdk.incubator.vector");
+
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(App.class.getName());
+        command.addAll(arguments);
+        command.add("--shard-index");
+        command.add(String.valueOf(shard));
+        command.add("--shard-count");
+        command.add(String.valueOf(nShards));
+        command.add("-o");
+        command.add(resultFile(directory, shard).toString());
+
+        // Errors are printed on the standard output by the shards, keep them to report them
+        return new ProcessBuilder(command)
+                .redirectOutput(logFile(directory, shard).toFile())
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    /**
+     * Writes the members of the results of every shard as a single JSON object
+     */
+    private void merge(Path directory, WritableByteChannel output) throws IOException {
+        write(output, "{");
+
+        boolean first = true;
+        for(int i = 0; i < nShards; i++) {
+            try(FileChannel result = FileChannel.open(resultFile(directory, i), StandardOpenOption.READ)) {
+                long size = result.size();
+
+                long open = firstNonWhitespace(result, 0, size);
+                long close = open >= 0 ? lastNonWhitespace(result, open + 1, size) : -1;
+
+                if(close < 0 || byteAt(result, open) != '{' || byteAt(result, close) != '}')
+                    throw new IOException("Invalid result of shard " + i);
+
+                // A shard without any user
+                if(firstNonWhitespace(result, open + 1, close) < 0)
+                    continue;
+
+                if(!first)
+                    write(output, ",");
+                first = false;
+
+                long position = open + 1;
+                while(position < close)
+                    position += result.transferTo(position, close - position, output);
+            }
+        }
+
+        write(output, "}\n");
+    }
+
+    /**
+     * Finds the first byte of a part of a file that is not whitespace
+     * @param start the position of the first byte of the part
+     * @param end the position after the last byte of the part
+     * @return the position of the byte, or -1 if the part only contains whitespace
+     */
+    private static long firstNonWhitespace(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BLOCK_SIZE);
+
+        for(long block = start; block < end; block += buffer.limit()) {
+            read(channel, buffer, block, end);
+
+            for(int i = 0; i < buffer.limit(); i++) {
+                if(!isWhitespace(buffer.get(i)))
+                    return block + i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the last byte of a part of a file that is not whitespace, like firstNonWhitespace()
+     */
+    private static long lastNonWhitespace(FileChannel channel, long start, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BLOCK_SIZE);
+
+        for(long blockEnd = end; blockEnd > start; blockEnd -= buffer.limit()) {
+            long block = Math.max(start, blockEnd - SCAN_BLOCK_SIZE);
+            read(channel, buffer, block, blockEnd);
+
+            for(int i = buffer.limit() - 1; i >= 0; i--) {
+                if(!isWhitespace(buffer.get(i)))
+                    return block + i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static byte byteAt(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        read(channel, buffer, position, position + 1);
+
+        return buffer.get(0);
+    }
+
+    /**
+     * Reads a part of a file, at most the size of the buffer, then flips the buffer
+     */
+    private static void read(FileChannel channel, ByteBuffer buffer, long start, long end) throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - start));
+
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, start + buffer.position()) < 0)
+                throw new IOException("Unexpected end of file");
+        }
+
+        buffer.flip();
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private static void write(WritableByteChannel output, String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+
+        while(buffer.hasRemaining())
+            output.write(buffer);
+    }
+
+    private static Path resultFile(Path directory, int shard) {
+        return directory.resolve("shard-" + shard + ".json");
+    }
+
+    private static Path logFile(Path directory, int shard) {
+        return directory.resolve("shard-" + shard + ".log");
+    }
+
+    private static void delete(Path directory) {
+        File[] files = directory.toFile().listFiles();
+
+        if(files != null) {
+            for(File file : files)
+                file.delete();
+        }
+
+        directory.toFile().delete();
+    }
+}
@@ -0,0 +1,60 @@
+package fi.aalto.amadei.tuning;
+
+import fi.aalto.amadei.utils.Constants;
+
+/**
+ * Chooses how many threads to dedicate to parsing and to computing from a sample of the input and the number of
+ * available cores.
+ * Cores are split proportionally to the time spent parsing and applying the sampled requests, since the slower stage
+ * bounds the throughput of the whole pipeline. The split is then bounded by how much parallelism the input actually
+ * offers: a file smaller than a few chunks cannot keep many parsers busy, and a few users cannot keep many computing
+ * threads busy since every user belongs to a single computing thread.
+ */
+public class Autotuner {
+
+    // Minimum number of distinct sampled users for every computing thread
+    private static final int USERS_PER_COMPUTING_THREAD = 32;
+
+    private final int nParsingThreads;
+    private final int nComputingThreads;
+
+    public Autotuner(InputSample sample, int nCores) {
+        nCores = Math.max(1, nCores);
+
+        if(nCores == 1 || sample.getLines() == 0) {
+            nParsingThreads = 1;
+            nComputingThreads = 1;
+            return;
+        }
+
+        long totalNanos = Math.max(1, sample.getParseNanos() + sample.getUpdateNanos());
+        double parsingShare = (double) sample.getParseNanos() / totalNanos;
+
+        int parsing = (int) Math.round(nCores * parsingShare);
+        parsing = Math.max(1, Math.min(nCores - 1, parsing));
+
+        int computing = Math.max(1, nCores - parsing);
+
+        // Bound the threads by the parallelism offered by the input
+        int maxParsing = (int) Math.max(1, Math.ceil((double) sample.getFileSize() / Constants.MIN_CHUNK_SIZE));
+        int maxComputing = Math.max(1, sample.getDistinctUsers() / USERS_PER_COMPUTING_THREAD);
+
+        parsing = Math.min(parsing, maxParsing);
+        computing = Math.min(computing, maxComputing);
+
+        // Give the cores not needed by one stage to the other one
+        parsing = Math.min(maxParsing, Math.max(parsing, nCores - computing));
+        computing = Math.min(maxComputing, Math.max(computing, nCores - parsing));
+
+        nParsingThreads = parsing;
+        nComputingThreads = computing;
+    }
+
+    public int getParsingThreads() {
+        return nParsingThreads;
+    }
+
+    public int getComputingThreads() {
+        return nComputingThreads;
+    }
+}
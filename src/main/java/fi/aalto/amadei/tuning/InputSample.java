@@ -0,0 +1,172 @@
+package fi.aalto.amadei.tuning;
+
+import com.google.gson.Gson;
+import fi.aalto.amadei.beans.UpdateRequest;
+import fi.aalto.amadei.io.Compression;
+import fi.aalto.amadei.io.FastRequestParser;
+import fi.aalto.amadei.io.ParsingMode;
+import fi.aalto.amadei.model.StateStorage;
+import fi.aalto.amadei.model.StorageType;
+import fi.aalto.amadei.utils.Instances;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Statistics on the beginning of an input file: how long its lines are, how many different users they touch and how
+ * expensive it is to parse them compared to applying them to the state.
+ * The prefix is processed twice and only the second pass is timed, so that class loading and the first JIT
+ * compilations do not end up in the measures.
+ */
+public class InputSample {
+
+    private final long fileSize;
+    private final int lines;
+    private final long bytes;
+    private final int distinctUsers;
+    private final long parseNanos;
+    private final long updateNanos;
+
+    private InputSample(long fileSize, int lines, long bytes, int distinctUsers, long parseNanos, long updateNanos) {
+        this.fileSize = fileSize;
+        this.lines = lines;
+        this.bytes = bytes;
+        this.distinctUsers = distinctUsers;
+        this.parseNanos = parseNanos;
+        this.updateNanos = updateNanos;
+    }
+
+    /**
+     * Reads and measures the beginning of the first of the input files
+     * @param files the input files, plain or compressed. The size of the input is the sum of their sizes.
+     * @param sampleSize the maximum number of bytes to read
+     * @param parsingMode the parser that will be used for the whole input
+     * @param storageType the storage engine that will be used for the whole input
+     * @return the sample
+     */
+    public static InputSample of(List<File> files, int sampleSize, ParsingMode parsingMode, StorageType storageType)
+            throws IOException {
+        long fileSize = 0;
+        for(File file : files)
+            fileSize += file.length();
+
+        byte[] data = new byte[Math.max(0, sampleSize)];
+        int length;
+        boolean cut;
+
+        // Compressed files are sampled after decompression
+        try(InputStream in = Compression.openAny(files.get(0))) {
+            length = in.readNBytes(data, 0, data.length);
+            cut = length == data.length && in.read() >= 0;
+        }
+
+        // Drop the last line if it was cut by the end of the sample
+        if(cut) {
+            while(length > 0 && data[length - 1] != '\n')
+                length--;
+        }
+
+        parse(data, length, parsingMode);
+        long start = System.nanoTime();
+        List<UpdateRequest> requests = parse(data, length, parsingMode);
+        long parseNanos = System.nanoTime() - start;
+
+        apply(requests, storageType);
+        start = System.nanoTime();
+        int distinctUsers = apply(requests, storageType);
+        long updateNanos = System.nanoTime() - start;
+
+        return new InputSample(fileSize, requests.size(), length, distinctUsers, parseNanos, updateNanos);
+    }
+
+    private static List<UpdateRequest> parse(byte[] data, int length, ParsingMode parsingMode) {
+        FastRequestParser fastParser = new FastRequestParser();
+        Gson gson = Instances.gson();
+        List<UpdateRequest> requests = new ArrayList<>();
+
+        int lineStart = 0;
+        for(int i = 0; i <= length; i++) {
+            if(i < length && data[i] != '\n')
+                continue;
+
+            int lineEnd = i;
+            if(lineEnd > lineStart && data[lineEnd - 1] == '\r')
+                lineEnd--;
+
+            if(lineEnd > lineStart) {
+                UpdateRequest request = null;
+
+                if(parsingMode == ParsingMode.FAST)
+                    request = fastParser.parse(data, lineStart, lineEnd);
+
+                if(request == null) {
+                    try {
+                        request = gson.fromJson(new String(data, lineStart, lineEnd - lineStart,
+                                StandardCharsets.UTF_8), UpdateRequest.class);
+                    } catch (RuntimeException e) {
+                        // A malformed line only makes the sample a bit smaller
+                    }
+                }
+
+                if(request != null && request.getUser() != null)
+                    requests.add(request);
+            }
+
+            lineStart = i + 1;
+        }
+
+        return requests;
+    }
+
+    private static int apply(List<UpdateRequest> requests, StorageType storageType) {
+        StateStorage stateStorage = storageType.create();
+        Set<String> users = new HashSet<>();
+
+        for(UpdateRequest r : requests) {
+            stateStorage.applyUpdate(r.getUser(), r.getTimestamp(), r.getValues());
+            users.add(r.getUser());
+        }
+
+        return users.size();
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getLines() {
+        return lines;
+    }
+
+    /**
+     * @return the average length of a line in bytes, or 0 if no line was sampled
+     */
+    public double getAverageLineLength() {
+        return lines == 0 ? 0 : (double) bytes / lines;
+    }
+
+    /**
+     * @return an estimate of the number of lines in the whole file
+     */
+    public long getEstimatedLines() {
+        return lines == 0 ? 0 : (long) (fileSize / getAverageLineLength());
+    }
+
+    public int getDistinctUsers() {
+        return distinctUsers;
+    }
+
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    public long getUpdateNanos() {
+        return updateNanos;
+    }
+}
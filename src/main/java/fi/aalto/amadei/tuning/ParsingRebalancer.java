@@ -0,0 +1,75 @@
+package fi.aalto.amadei.tuning;
+
+import fi.aalto.amadei.computing.ComputeController;
+import fi.aalto.amadei.io.ParallelFileReader;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically looks at the queues of the computing threads and moves the number of parsing threads towards the
+ * speed of the computing threads.
+ * Queues staying almost full mean that parsers are waiting for the workers, so a parsing thread is removed and its
+ * core is left to the workers. Queues almost empty mean that workers are waiting for the parsers, so a parsing thread
+ * is added, up to the given maximum.
+ */
+public class ParsingRebalancer implements Runnable {
+
+    private static final long PERIOD_MILLIS = 100;
+
+    private static final double HIGH_FILL = 0.9;
+    private static final double LOW_FILL = 0.1;
+
+    // Number of consecutive checks with full queues before removing a parsing thread
+    private static final int FULL_CHECKS = 2;
+
+    private final ParallelFileReader parallelFileReader;
+    private final ComputeController computeController;
+    private final int maxParsingThreads;
+
+    private final ScheduledExecutorService scheduler;
+
+    private int fullChecks;
+
+    public ParsingRebalancer(ParallelFileReader parallelFileReader, ComputeController computeController,
+                             int maxParsingThreads) {
+        this.parallelFileReader = parallelFileReader;
+        this.computeController = computeController;
+        this.maxParsingThreads = Math.max(1, maxParsingThreads);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "parsing-rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        scheduler.scheduleAtFixedRate(this, PERIOD_MILLIS, PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        double fill = computeController.getQueueFill();
+        int parallelism = parallelFileReader.getParallelism();
+
+        if(fill > HIGH_FILL) {
+            fullChecks++;
+
+            if(fullChecks >= FULL_CHECKS && parallelism > 1) {
+                parallelFileReader.setParallelism(parallelism - 1);
+                fullChecks = 0;
+            }
+        } else {
+            fullChecks = 0;
+
+            if(fill < LOW_FILL && parallelism < maxParsingThreads)
+                parallelFileReader.setParallelism(parallelism + 1);
+        }
+    }
+}
@@ -1,6 +1,33 @@
 package fi.aalto.amadei.utils;
 
+import fi.aalto.amadei.computing.PartitioningMode;
+import fi.aalto.amadei.io.ParsingMode;
+import fi.aalto.amadei.model.StorageType;
+
 public class Constants {
     public static final int DEFAULT_PARSING_THREADS = 4;
     public static final int DEFAULT_COMPUTING_THREADS = 1;
+    public static final ParsingMode DEFAULT_PARSING_MODE = ParsingMode.FAST;
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024 * 1024;
+    // Blocks read ahead by every parsing thread while parsing the current one
+    public static final int DEFAULT_PREFETCH_DEPTH = 1;
+
+    public static final int CHUNKS_PER_THREAD = 16;
+    public static final long MIN_CHUNK_SIZE = 1024 * 1024;
+    public static final long MAX_CHUNK_SIZE = 32 * 1024 * 1024;
+
+    // Memory of the requests waiting in the queues of all computing threads
+    public static final long DEFAULT_QUEUE_MEMORY = 64 * 1024 * 1024;
+    // Rough heap size of a parsed request: the request, its map of values and their strings
+    public static final int ESTIMATED_REQUEST_SIZE = 256;
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    public static final StorageType DEFAULT_STORAGE_TYPE = StorageType.HASHMAP;
+    public static final PartitioningMode DEFAULT_PARTITIONING_MODE = PartitioningMode.HASH;
+
+    public static final int PREFILTER_CAPACITY = 1 << 20;
+
+    public static final long DEFAULT_FOLLOW_INTERVAL_MILLIS = 1000;
+
+    public static final int AUTO_SAMPLE_SIZE = 4 * 1024 * 1024;
 }
@@ -2,6 +2,9 @@ package fi.aalto.amadei.utils;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import fi.aalto.amadei.io.ByteScanner;
+import fi.aalto.amadei.io.ScanningMode;
+import fi.aalto.amadei.model.StringDictionary;
 
 /**
  * Static class that provides global instances
@@ -11,9 +14,23 @@ public class Instances {
     // Creates a new GSON instance and register a type adapter for requests
     private static final Gson gson = new GsonBuilder().create();
 
+    // Keys, shared by the parsers and the state storages
+    private static final StringDictionary dictionary = new StringDictionary();
+
+    // Vectorized if the Vector API module was added to the JVM
+    private static final ByteScanner scanner = ScanningMode.best().create();
+
     private Instances() {}
 
     public static Gson gson() {
         return gson;
     }
+
+    public static StringDictionary dictionary() {
+        return dictionary;
+    }
+
+    public static ByteScanner scanner() {
+        return scanner;
+    }
 }
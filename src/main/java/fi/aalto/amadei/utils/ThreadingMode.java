@@ -0,0 +1,42 @@
+package fi.aalto.amadei.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+
+/**
+ * Available kinds of threads to run parsing and computing tasks on
+ */
+public enum ThreadingMode {
+
+    /**
+     * A fixed number of platform threads
+     */
+    PLATFORM(name -> Thread.ofPlatform().name(name + "-", 0).factory()),
+
+    /**
+     * A new virtual thread for every task. Virtual threads waiting for I/O or for a queue give their carrier thread
+     * to other virtual threads, so there can be many more of them than cores.
+     */
+    VIRTUAL(name -> Thread.ofVirtual().name(name + "-", 0).factory());
+
+    private final Function<String, ThreadFactory> factory;
+
+    ThreadingMode(Function<String, ThreadFactory> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Creates an executor running every task on its own thread. Platform threads are pooled, virtual threads are not.
+     * @param nThreads the number of platform threads of the pool, ignored for virtual threads
+     * @param name the prefix of the names of the threads
+     * @return a new executor
+     */
+    public ExecutorService newExecutor(int nThreads, String name) {
+        if(this == VIRTUAL)
+            return Executors.newThreadPerTaskExecutor(factory.apply(name));
+
+        return Executors.newFixedThreadPool(nThreads, factory.apply(name));
+    }
+}
@@ -0,0 +1,51 @@
+#!/usr/bin/env bash
+# Checks that history queries with --retain-versions only fail on the history of the users and keys they ask for, and
+# not because another user or key had old versions forgotten.
+# Usage: tests/check-history.sh [jar, supercell-2.jar by default]
+set -euo pipefail
+
+jar=${1:-supercell-2.jar}
+
+directory=$(mktemp -d)
+trap 'rm -rf "$directory"' EXIT
+
+# Key y of user b has 3 versions, so that the oldest one is forgotten by --retain-versions 2
+cat > "$directory/input.jsonl" <<'INPUT'
+{"user": "a", "timestamp": 10, "values": {"x": "1"}}
+{"user": "a", "timestamp": 20, "values": {"x": "2"}}
+{"user": "b", "timestamp": 10, "values": {"x": "1", "y": "1"}}
+{"user": "b", "timestamp": 20, "values": {"y": "2"}}
+{"user": "b", "timestamp": 30, "values": {"y": "3"}}
+INPUT
+
+failures=0
+
+check() {
+    local query=$1 expected=$2 actual
+
+    actual=$(printf '%s\nstop\n' "$query" | java -jar "$jar" -i "$directory/input.jsonl" --storage VERSIONED \
+            --retain-versions 2 --query | tr -d ' \n')
+
+    if [ "$actual" = "$expected" ]; then
+        echo "OK   $query"
+    else
+        echo "FAIL $query: expected $expected, got $actual"
+        failures=$((failures + 1))
+    fi
+}
+
+check "asof 15 prefix a" '{"a":{"x":"1"}}'
+check "diff 10 20 prefix a" '{"a":{"x":"2"}}'
+check "asof 15 range a c x" '{"a":{"x":"1"},"b":{"x":"1"}}'
+check "asof 15 get b x" '{"b":{"x":"1"}}'
+
+# The history actually asked for is still reported as forgotten
+if printf 'asof 15 get b y\nstop\n' | java -jar "$jar" -i "$directory/input.jsonl" --storage VERSIONED \
+        --retain-versions 2 --query 2>&1 | grep -q "only known since"; then
+    echo "OK   asof 15 get b y fails"
+else
+    echo "FAIL asof 15 get b y does not fail"
+    failures=$((failures + 1))
+fi
+
+[ "$failures" -eq 0 ]
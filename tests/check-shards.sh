@@ -0,0 +1,46 @@
+#!/usr/bin/env bash
+# Checks that running as several shards (--shards) gives the same result as a single process, for every storage and
+# partitioner, including shards without any user.
+# Usage: tests/check-shards.sh <input file> [jar, supercell-2.jar by default]
+set -euo pipefail
+
+input=$1
+jar=${2:-supercell-2.jar}
+
+directory=$(mktemp -d)
+trap 'rm -rf "$directory"' EXIT
+
+# A few lines for more shards than users, so that some shards are empty
+head -n 3 "$input" > "$directory/small.jsonl"
+
+same_json() {
+    python3 -c 'import json, sys; sys.exit(json.load(open(sys.argv[1])) != json.load(open(sys.argv[2])))' "$1" "$2"
+}
+
+failures=0
+
+check() {
+    local file=$1 shards=$2
+    shift 2
+
+    java -jar "$jar" -i "$file" "$@" > "$directory/expected.json"
+    java -jar "$jar" -i "$file" --shards "$shards" "$@" > "$directory/actual.json"
+
+    if same_json "$directory/expected.json" "$directory/actual.json"; then
+        echo "OK   $(basename "$file") --shards $shards $*"
+    else
+        echo "FAIL $(basename "$file") --shards $shards $*"
+        failures=$((failures + 1))
+    fi
+}
+
+for storage in HASHMAP COMPACT OFFHEAP VERSIONED; do
+    for partitioner in HASH CONSISTENT HOT; do
+        check "$input" 3 --storage "$storage" --partitioner "$partitioner"
+        check "$directory/small.jsonl" 8 --storage "$storage" --partitioner "$partitioner"
+    done
+done
+
+check "$input" 2 --prefilter
+
+[ "$failures" -eq 0 ]